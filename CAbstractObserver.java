@@ -0,0 +1,290 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.utils;
+
+import java.util.Date;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Logger;
+
+import com.jme.math.Vector3f;
+
+/**
+ * Common code of the observers: time keeping, projection of the ecliptic
+ * coordinates to the local horizon and distance scaling. Subclasses only
+ * provide the ecliptic series of their body.
+ */
+public abstract class CAbstractObserver implements CCelestialObserver {
+	double lambda;
+	double beta;
+	double r;
+	double lambdaOffset;
+	double betaOffset;
+	double rOffset;
+
+	/** current time, in milliseconds since 1970-01-01 UTC */
+	long currentTime;
+
+	Vector3f position = new Vector3f();
+	/** time and site dependent terms, possibly shared with other observers */
+	private CAstroContext astroContext = new CAstroContext();
+	/** ecliptic coordinates, reused at each update */
+	private final double[] ecliptic = new double[3];
+	/** optional interpolated ephemeris */
+	private CEphemerisCache ephemerisCache;
+	private boolean debug = false;
+	private double xs;
+	private double ys;
+	private float siteLat;
+	private float siteLon;
+
+	/**
+	 * CONSTRUCTOR: subclasses must call calculateCartesianCoords once their
+	 * own state is set.
+	 *
+	 * @param currentTime -
+	 *            Time from which body position is set, in milliseconds since
+	 *            1970-01-01 UTC
+	 * @param lambdaOffset -
+	 *            Ecliptic longitude offset
+	 * @param betaOffset -
+	 *            Ecliptic latitude offset
+	 * @param rOffset -
+	 *            Distance offset
+	 */
+	protected CAbstractObserver(long currentTime, double lambdaOffset,
+			double betaOffset, double rOffset) {
+		this.currentTime = currentTime;
+		this.lambdaOffset = lambdaOffset;
+		this.betaOffset = betaOffset;
+		this.rOffset = rOffset;
+	}
+
+	/**
+	 * Moves the body to the given time
+	 *
+	 * @param time -
+	 *            current time, in milliseconds since 1970-01-01 UTC
+	 */
+	protected void calculateCartesianCoords(long time) {
+
+		astroContext.set(time, siteLat, siteLon);
+		double T = astroContext.getCenturies();
+		if (ephemerisCache != null)
+			ephemerisCache.getEclipticCoords(astroContext.getTime(), ecliptic);
+		else
+			getEclipticCoords(T, ecliptic);
+		lambda = ecliptic[LAMBDA];
+		beta = ecliptic[BETA];
+		r = ecliptic[DISTANCE];
+
+		// Convert to local horizon coordinates
+		CAstroMath.toHorizon(astroContext.getHorizonMatrix(), lambda, beta, r,
+				position);
+
+		// Get long, lat
+		xs = Math.atan2(position.z, -position.x);
+		ys = Math.atan2(position.y, -position.x);
+
+		// Scale distance
+		position.multLocal(getDistanceScale());
+
+		if (debug) {
+			Logger logger = Logger.getLogger(getClass().getName());
+			logger.info(getClass().getSimpleName() + " > " + new Date(time));
+			logger.info("             > POS " + position);
+		}
+	}
+
+	/**
+	 * Computes the body positions for many times at once, without changing
+	 * this observer. Large batches are split across the cores of the common
+	 * fork-join pool. Any output array may be null if not needed.
+	 *
+	 * @param times -
+	 *            times in milliseconds since 1970-01-01 UTC
+	 * @param siteLat -
+	 *            earth site latitude
+	 * @param siteLon -
+	 *            earth site longitude
+	 * @param x -
+	 *            x coordinates of the body positions
+	 * @param y -
+	 *            y coordinates of the body positions
+	 * @param z -
+	 *            z coordinates of the body positions
+	 * @param latitude -
+	 *            body latitudes
+	 * @param longitude -
+	 *            body longitudes
+	 */
+	public void computePositions(long[] times, float siteLat, float siteLon,
+			float[] x, float[] y, float[] z, double[] latitude,
+			double[] longitude) {
+		CEphemerisBatch.compute(this, getDistanceScale(), times, siteLat,
+				siteLon, x, y, z, latitude, longitude, ForkJoinPool.commonPool());
+	}
+
+	public void enableDebug(boolean enable) {
+		debug = true;
+	}
+
+	/**
+	 *
+	 * @return time and site terms used by this observer
+	 */
+	public CAstroContext getAstroContext() {
+		return astroContext;
+	}
+
+	/**
+	 *
+	 * @return current date
+	 */
+	public Date getCurrentDate() {
+		return new Date(currentTime);
+	}
+
+	/**
+	 *
+	 * @return current time, in milliseconds since 1970-01-01 UTC
+	 */
+	public long getCurrentTime() {
+		return currentTime;
+	}
+
+	/**
+	 *
+	 * @return interpolated ephemeris used by this observer, or null
+	 */
+	public CEphemerisCache getEphemerisCache() {
+		return ephemerisCache;
+	}
+
+	/**
+	 *
+	 * @return body latitude within (-PI, PI) interval
+	 */
+	public double getLatitude() {
+		return ys;
+	}
+
+	/**
+	 *
+	 * @return body longitude within (-PI, PI) interval
+	 */
+	public double getLongitude() {
+		return xs;
+	}
+
+	/**
+	 *
+	 * @return body position, centered at the origin
+	 */
+	public Vector3f getPosition() {
+		return position;
+	}
+
+	/**
+	 *
+	 * @param store -
+	 *            vector to copy the body position to
+	 * @return store
+	 */
+	public Vector3f getPosition(Vector3f store) {
+		return store.set(position);
+	}
+
+	/**
+	 *
+	 * @return earth site latitude
+	 */
+	public float getSiteLatitude() {
+		return siteLat;
+	}
+
+	/**
+	 *
+	 * @return earth site longitude
+	 */
+	public float getSiteLongitude() {
+		return siteLon;
+	}
+
+	/**
+	 * Set the astronomical context used by this observer. Observers sharing a
+	 * context and observing the same time and site compute the sidereal time
+	 * and horizon rotation once.
+	 */
+	public void setAstroContext(CAstroContext astroContext) {
+		this.astroContext = astroContext;
+	}
+
+	/**
+	 * Moves the body to the given time
+	 *
+	 * @param time -
+	 *            Time in milliseconds since 1970-01-01 UTC
+	 */
+	public void setCurrentTime(long time) {
+		currentTime = time;
+		calculateCartesianCoords(time);
+	}
+
+	/**
+	 * Set an interpolated ephemeris built on this observer, or null to
+	 * evaluate the series at each update
+	 */
+	public void setEphemerisCache(CEphemerisCache ephemerisCache) {
+		this.ephemerisCache = ephemerisCache;
+		calculateCartesianCoords(currentTime);
+	}
+
+	/**
+	 *
+	 * Set earth site latitude
+	 */
+	public void setSiteLatitude(float siteLat) {
+		this.siteLat = siteLat;
+	}
+
+	/**
+	 *
+	 * Set earth site longitude
+	 */
+	public void setSiteLongitude(float siteLon) {
+		this.siteLon = siteLon;
+	}
+
+	/**
+	 * Advances body position
+	 *
+	 * @param elapsHH -
+	 *            Elapsed hours
+	 * @param elapsMM -
+	 *            Elapsed minutes
+	 * @param elapsSS -
+	 *            Elapsed seconds
+	 */
+	protected void advance(int elapsHH, int elapsMM, int elapsSS) {
+		setCurrentTime(currentTime
+				+ ((elapsHH * 60L + elapsMM) * 60L + elapsSS) * 1000L);
+	}
+}
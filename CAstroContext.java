@@ -0,0 +1,84 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.utils;
+
+/**
+ * The astronomical terms that only depend on the instant and the earth site:
+ * julian centuries, obliquity of the ecliptic, local sidereal time and the
+ * resulting ecliptic to horizon rotation. Observers sharing a context only
+ * recompute them when the instant or the site changes, so several suns and
+ * moons observed from one site at the same time pay for them once.<br>
+ * This class is not thread safe.
+ */
+public class CAstroContext {
+	private boolean valid;
+	private long time;
+	private float siteLat;
+	private float siteLon;
+	private double T;
+	private final double[] horizon = new double[9];
+
+	/**
+	 * Moves the context to the given instant and site. Nothing is recomputed
+	 * if they did not change since the last call.
+	 *
+	 * @param time -
+	 *            time in milliseconds since 1970-01-01 UTC
+	 * @param siteLat -
+	 *            earth site latitude
+	 * @param siteLon -
+	 *            earth site longitude
+	 */
+	public void set(long time, float siteLat, float siteLon) {
+		if (valid && this.time == time && this.siteLat == siteLat
+				&& this.siteLon == siteLon)
+			return;
+
+		this.time = time;
+		this.siteLat = siteLat;
+		this.siteLon = siteLon;
+		T = CAstroMath.centuries(CAstroMath.julianDate(time));
+		CAstroMath.horizonMatrix(T, siteLat, siteLon, horizon);
+		valid = true;
+	}
+
+	/**
+	 * @return julian centuries since J2000.0
+	 */
+	public double getCenturies() {
+		return T;
+	}
+
+	/**
+	 * @return row major ecliptic to horizon rotation, not to be modified
+	 */
+	public double[] getHorizonMatrix() {
+		return horizon;
+	}
+
+	/**
+	 * @return time the context was computed for, in milliseconds since
+	 *         1970-01-01 UTC
+	 */
+	public long getTime() {
+		return time;
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.utils;
+
+import com.jme.math.Vector3f;
+
+/**
+ * Time and coordinate helpers shared by the sun and moon observers. Every
+ * method works on primitives or on caller supplied storage, so none of them
+ * allocates.
+ */
+public final class CAstroMath {
+	/** Milliseconds in a day */
+	public static final long MILLIS_PER_DAY = 86400000L;
+	/** Julian date of 1970-01-01 00:00 UTC */
+	public static final double JD_UNIX_EPOCH = 2440587.5;
+	/** Julian date of the J2000.0 epoch */
+	public static final double JD_J2000 = 2451545.0;
+
+	private static final double TWO_PI = Math.PI * 2;
+
+	private CAstroMath() {
+	}
+
+	/**
+	 * @param epochMillis -
+	 *            UTC time in milliseconds since 1970-01-01
+	 * @return the julian date of the given instant
+	 */
+	public static double julianDate(long epochMillis) {
+		return JD_UNIX_EPOCH + epochMillis / (double) MILLIS_PER_DAY;
+	}
+
+	/**
+	 * @param julianDate -
+	 *            a julian date
+	 * @return julian centuries elapsed since J2000.0
+	 */
+	public static double centuries(double julianDate) {
+		return (julianDate - JD_J2000) / 36525;
+	}
+
+	/**
+	 * Builds the rotation taking ecliptic coordinates to local horizon
+	 * coordinates. It is the product Rz(-LMST) * Rx(-eta) * Ry(PI/2 - lat),
+	 * with the three rotations fused into a single row major matrix.
+	 *
+	 * @param T -
+	 *            julian centuries since J2000.0
+	 * @param siteLat -
+	 *            earth site latitude
+	 * @param siteLon -
+	 *            earth site longitude
+	 * @param store -
+	 *            array of 9 doubles receiving the matrix
+	 */
+	public static void horizonMatrix(double T, float siteLat, float siteLon,
+			double[] store) {
+		// latitude, longitude of the place on earth
+		double lon = siteLon + (float) (Math.PI * 3 / 2);
+		double eta = 0.409093 - 0.000227 * T; // obliquity of the ecliptic
+		double LMST = (4.894961 + 230121.675315 * T + lon) % TWO_PI; // local
+		// sidereal time
+		double ay = -(siteLat - Math.PI / 2);
+
+		double cy = Math.cos(ay), sy = Math.sin(ay);
+		double cx = Math.cos(eta), sx = -Math.sin(eta);
+		double cz = Math.cos(LMST), sz = -Math.sin(LMST);
+
+		// Rx * Ry
+		double p00 = cy, p01 = 0, p02 = sy;
+		double p10 = sx * sy, p11 = cx, p12 = -sx * cy;
+		double p20 = -cx * sy, p21 = sx, p22 = cx * cy;
+
+		// Rz * (Rx * Ry)
+		store[0] = cz * p00 - sz * p10;
+		store[1] = cz * p01 - sz * p11;
+		store[2] = cz * p02 - sz * p12;
+		store[3] = sz * p00 + cz * p10;
+		store[4] = sz * p01 + cz * p11;
+		store[5] = sz * p02 + cz * p12;
+		store[6] = p20;
+		store[7] = p21;
+		store[8] = p22;
+	}
+
+	/**
+	 * Converts ecliptic spherical coordinates to the cartesian layout used by
+	 * the observers and rotates them with the given matrix.
+	 *
+	 * @param matrix -
+	 *            row major matrix built by horizonMatrix
+	 * @param lambda -
+	 *            ecliptic longitude
+	 * @param beta -
+	 *            ecliptic latitude
+	 * @param r -
+	 *            distance
+	 * @param store -
+	 *            vector receiving the rotated position
+	 * @return store
+	 */
+	public static Vector3f toHorizon(double[] matrix, double lambda,
+			double beta, double r, Vector3f store) {
+		double cosBeta = Math.cos(beta);
+		double x = r * Math.sin(beta);
+		double y = r * Math.sin(lambda) * cosBeta;
+		double z = r * Math.cos(lambda) * cosBeta;
+		store.x = (float) (matrix[0] * x + matrix[1] * y + matrix[2] * z);
+		store.y = (float) (matrix[3] * x + matrix[4] * y + matrix[5] * z);
+		store.z = (float) (matrix[6] * x + matrix[7] * y + matrix[8] * z);
+		return store;
+	}
+}
@@ -23,6 +23,7 @@ package jives.xutils;
 import java.net.MalformedURLException;
 import java.nio.FloatBuffer;
 
+import jives.utils.CSimulationClock;
 import jives.utils.ResourceLoader;
 
 import com.jme.image.Texture;
@@ -47,6 +48,8 @@ public class CAtmosphere {
 	private CSkyDome skydome;
 	/** clouds dome */
 	private Sphere cloudsDome;
+	/** Vertices of each clouds batch changed since the last upload */
+	private CDirtyRanges[] dirtyRanges;
 	/** clouds material */
 	private MaterialState cloudsMat;
 	/** clouds Textures */
@@ -65,6 +68,10 @@ public class CAtmosphere {
 	private DisplaySystem display = DisplaySystem.getDisplaySystem();
 
 	private boolean running;
+	/** clock read at last update */
+	private CSimulationClock lastClock;
+	/** clock time at last update */
+	private long lastClockTime;
 	
 	/**
 	 * Constructor. Creates a new instance of CAtmosphere<br>
@@ -94,6 +101,10 @@ public class CAtmosphere {
 					skydome.getRadius() * 0.45f);
 			cloudsDome.setIsCollidable(false);
 			cloudsDome.setSolidColor(ColorRGBA.white);
+			dirtyRanges = new CDirtyRanges[cloudsDome.getBatchCount()];
+			for (int i = 0; i < dirtyRanges.length; i++)
+				dirtyRanges[i] = new CDirtyRanges(cloudsDome.getBatch(i)
+						.getVertexCount());
 	
 			// Flip normals of the sphere to correctly reflect sun light
 			FloatBuffer normalBuf;
@@ -177,7 +188,7 @@ public class CAtmosphere {
 		value = Math.max(Math.min(1, value), 0);
 		ColorRGBA cloudsDiffuse = cloudsMat.getDiffuse();
 
-		// apply geometry color
+		// apply geometry color, the random alphas changing every vertex
 		FloatBuffer colorBuf;
 		TriangleBatch batch;
 		for (int i = 0; i < cloudsDome.getBatchCount(); i++) {
@@ -189,9 +200,20 @@ public class CAtmosphere {
 						* (FastMath.rand.nextFloat() * 0.9f + 0.1f);
 				BufferUtils.setInBuffer(cloudsDiffuse, colorBuf, j);
 			}
+			dirtyRanges[i].markAll();
 		}
 	}
 
+	/**
+	 * @param index -
+	 *            index of a clouds batch
+	 * @return vertices of that batch whose color changed since the ranges
+	 *         were cleared, which the renderer does once it uploaded them
+	 */
+	public CDirtyRanges getDirtyRanges(int index) {
+		return dirtyRanges[index];
+	}
+
 	/**
 	 * Change the clouds texture
 	 * 
@@ -285,12 +307,48 @@ public class CAtmosphere {
 	 *            Elapsed seconds
 	 */
 	public void update(float tpf, int elapsHH, int elapsMM, int elapsSS) {
+		updateEffects(0.25f * (elapsHH + 0.016f * elapsMM));
+	}
+
+	/**
+	 * Updates sky, reading elapsed time from the simulation clock of the sky
+	 * dome. The clock is only read: the caller advances it with
+	 * {@link CSimulationClock#advance(float)} once per frame.
+	 * 
+	 * @param tpf -
+	 *            Time per frame from
+	 *            <code>BasicGameState</code> <code>Update()</code> method
+	 * @throws IllegalStateException
+	 *             if no simulation clock is set on the sky dome
+	 */
+	public void update(float tpf) {
+		CSimulationClock clock = skydome.getSimulationClock();
+		if (clock == null)
+			throw new IllegalStateException(
+					"No simulation clock set on the sky dome");
+		long now = clock.getTime();
+		if (clock != lastClock) {
+			lastClock = clock;
+			lastClockTime = now;
+		}
+		long elapsed = now - lastClockTime;
+		lastClockTime = now;
+		updateEffects(0.25f * (elapsed / 3600000 + 0.016f * (elapsed % 3600000)
+				/ 60000f));
+	}
+
+	/**
+	 * Updates haze and clouds
+	 * 
+	 * @param timeFactor -
+	 *            Clouds translation multiplier
+	 */
+	private void updateEffects(float timeFactor) {
 		// Update haze color and backbuffer color
 		haze.setColor(skydome.getHazeColor());
 
 		// Warp clouds
 		Vector3f currentTra = cloudsTex.getTranslation();
-		float timeFactor = 0.25f * (elapsHH + 0.016f * elapsMM);
 		Vector3f normWind = wind.normalize();
 		Vector3f newTra = new Vector3f(
 				(currentTra.x + normWind.x * timeFactor) % 0.95f,
@@ -0,0 +1,138 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.utils;
+
+import com.jme.math.Vector3f;
+
+/**
+ * A sky body seen from an earth site. Implementations trade accuracy for
+ * speed; each one declares its error, and CObserverTierBenchmark measures
+ * their costs, so that a tier can be chosen per platform:
+ * <ul>
+ * <li>{@link CSunObserver}, {@link CMoonObserver}: the low precision series</li>
+ * <li>{@link CInterpolatedObserver}: a series read back from Chebyshev
+ * tables, cheaper per update</li>
+ * <li>{@link CPreciseSunObserver}: a higher accuracy solar theory, meant for
+ * offline use</li>
+ * </ul>
+ */
+public interface CCelestialObserver extends CEphemerisSource {
+	/**
+	 * Computes the body positions for many times at once, without changing
+	 * this observer. Any output array may be null if not needed.
+	 *
+	 * @param times -
+	 *            times in milliseconds since 1970-01-01 UTC
+	 * @param siteLat -
+	 *            earth site latitude
+	 * @param siteLon -
+	 *            earth site longitude
+	 * @param x -
+	 *            x coordinates of the body positions
+	 * @param y -
+	 *            y coordinates of the body positions
+	 * @param z -
+	 *            z coordinates of the body positions
+	 * @param latitude -
+	 *            body latitudes
+	 * @param longitude -
+	 *            body longitudes
+	 */
+	void computePositions(long[] times, float siteLat, float siteLon,
+			float[] x, float[] y, float[] z, double[] latitude,
+			double[] longitude);
+
+	/**
+	 * @return time and site terms used by this observer
+	 */
+	CAstroContext getAstroContext();
+
+	/**
+	 * @return current time, in milliseconds since 1970-01-01 UTC
+	 */
+	long getCurrentTime();
+
+	/**
+	 * @return factor applied to the distance of the body to get its position
+	 */
+	float getDistanceScale();
+
+	/**
+	 * @return body latitude within (-PI, PI) interval
+	 */
+	double getLatitude();
+
+	/**
+	 * @return body longitude within (-PI, PI) interval
+	 */
+	double getLongitude();
+
+	/**
+	 * @return largest error on the ecliptic longitude and latitude, in
+	 *         radians, against the true position of the body
+	 */
+	double getMaxError();
+
+	/**
+	 * @return body position, centered at the origin
+	 */
+	Vector3f getPosition();
+
+	/**
+	 * @param store -
+	 *            vector to copy the body position to
+	 * @return store
+	 */
+	Vector3f getPosition(Vector3f store);
+
+	/**
+	 * @return earth site latitude
+	 */
+	float getSiteLatitude();
+
+	/**
+	 * @return earth site longitude
+	 */
+	float getSiteLongitude();
+
+	/**
+	 * Set time and site terms, possibly shared with other observers
+	 */
+	void setAstroContext(CAstroContext astroContext);
+
+	/**
+	 * Moves the body to the given time
+	 *
+	 * @param time -
+	 *            Time in milliseconds since 1970-01-01 UTC
+	 */
+	void setCurrentTime(long time);
+
+	/**
+	 * Set earth site latitude
+	 */
+	void setSiteLatitude(float siteLat);
+
+	/**
+	 * Set earth site longitude
+	 */
+	void setSiteLongitude(float siteLon);
+}
@@ -0,0 +1,169 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.xutils;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Vertices of a buffer written since the renderer last uploaded it, so that
+ * only the modified ranges are uploaded again. Writers flag each vertex whose
+ * value they change; the renderer reads the flagged ranges, uploads them and
+ * clears the flags.<br>
+ * Distinct vertices can be flagged from several threads at once; reading the
+ * ranges must wait for the writers to be done.
+ */
+public class CDirtyRanges {
+	private final boolean[] dirty;
+
+	/**
+	 * Constructor. No vertex is flagged.
+	 * 
+	 * @param vertexCount -
+	 *            number of vertices of the buffer
+	 */
+	public CDirtyRanges(int vertexCount) {
+		dirty = new boolean[vertexCount];
+	}
+
+	/**
+	 * @return number of vertices of the buffer
+	 */
+	public int getVertexCount() {
+		return dirty.length;
+	}
+
+	/**
+	 * Flags a vertex as written
+	 */
+	public void mark(int vertex) {
+		dirty[vertex] = true;
+	}
+
+	/**
+	 * Flags a range of vertices as written
+	 * 
+	 * @param from -
+	 *            index of the first vertex
+	 * @param to -
+	 *            index after the last vertex
+	 */
+	public void mark(int from, int to) {
+		for (int v = from; v < to; v++)
+			dirty[v] = true;
+	}
+
+	/**
+	 * Flags all vertices, for a buffer replaced as a whole
+	 */
+	public void markAll() {
+		mark(0, dirty.length);
+	}
+
+	/**
+	 * Flags the vertices whose color differs between two buffers of four
+	 * floats per vertex. Undefined channels are equal to each other.
+	 * 
+	 * @param before -
+	 *            colors known to the renderer
+	 * @param after -
+	 *            colors replacing them
+	 */
+	public void markChanged(FloatBuffer before, FloatBuffer after) {
+		for (int v = 0; v < dirty.length; v++) {
+			int c = v * 4;
+			if (!isSame(before, after, c) || !isSame(before, after, c + 1)
+					|| !isSame(before, after, c + 2)
+					|| !isSame(before, after, c + 3))
+				dirty[v] = true;
+		}
+	}
+
+	private static boolean isSame(FloatBuffer before, FloatBuffer after, int i) {
+		return Float.floatToIntBits(before.get(i)) == Float
+				.floatToIntBits(after.get(i));
+	}
+
+	/**
+	 * @return true if the vertex was written since the flags were cleared
+	 */
+	public boolean isDirty(int vertex) {
+		return dirty[vertex];
+	}
+
+	/**
+	 * @return number of vertices written since the flags were cleared
+	 */
+	public int getDirtyCount() {
+		int count = 0;
+		for (int v = 0; v < dirty.length; v++)
+			if (dirty[v])
+				count++;
+		return count;
+	}
+
+	/**
+	 * Computes the ranges of written vertices
+	 * 
+	 * @param maxGap -
+	 *            largest number of clean vertices merged into the surrounding
+	 *            ranges, trading upload size for fewer uploads
+	 * @return first vertex and vertex after the last of each range, in
+	 *         increasing order
+	 */
+	public int[] getRanges(int maxGap) {
+		int count = 0;
+		int[] ranges = new int[8];
+		int v = 0;
+		while (v < dirty.length) {
+			if (!dirty[v]) {
+				v++;
+				continue;
+			}
+			// Extend the range over gaps up to maxGap clean vertices
+			int from = v;
+			int to = ++v;
+			while (v < dirty.length && v - to <= maxGap) {
+				if (dirty[v])
+					to = v + 1;
+				v++;
+			}
+			if (count + 2 > ranges.length) {
+				int[] grown = new int[ranges.length * 2];
+				System.arraycopy(ranges, 0, grown, 0, count);
+				ranges = grown;
+			}
+			ranges[count++] = from;
+			ranges[count++] = to;
+			v = to;
+		}
+		int[] result = new int[count];
+		System.arraycopy(ranges, 0, result, 0, count);
+		return result;
+	}
+
+	/**
+	 * Clears the flags, once the renderer uploaded the written vertices
+	 */
+	public void clear() {
+		for (int v = 0; v < dirty.length; v++)
+			dirty[v] = false;
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.utils;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.jme.math.Vector3f;
+
+/**
+ * Evaluates the position of a body for many timestamps at once, writing the
+ * results into primitive arrays. Large batches are split across the cores
+ * of a fork-join pool; batches up to {@link #SPLIT_THRESHOLD} run on the
+ * calling thread.
+ */
+public final class CEphemerisBatch extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+
+	/** Number of timestamps below which a batch is not split */
+	public static final int SPLIT_THRESHOLD = 2048;
+
+	private final CEphemerisSource source;
+	private final float distScale;
+	private final long[] times;
+	private final float siteLat;
+	private final float siteLon;
+	private final float[] x;
+	private final float[] y;
+	private final float[] z;
+	private final double[] latitude;
+	private final double[] longitude;
+	private final int from;
+	private final int to;
+
+	private CEphemerisBatch(CEphemerisSource source, float distScale,
+			long[] times, float siteLat, float siteLon, float[] x, float[] y,
+			float[] z, double[] latitude, double[] longitude, int from, int to) {
+		this.source = source;
+		this.distScale = distScale;
+		this.times = times;
+		this.siteLat = siteLat;
+		this.siteLon = siteLon;
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		this.latitude = latitude;
+		this.longitude = longitude;
+		this.from = from;
+		this.to = to;
+	}
+
+	/**
+	 * Computes the positions of a body, as the observers would for each of
+	 * the given times. Any output array may be null if not needed.
+	 *
+	 * @param source -
+	 *            series of the body
+	 * @param distScale -
+	 *            factor applied to the distance
+	 * @param times -
+	 *            times in milliseconds since 1970-01-01 UTC
+	 * @param siteLat -
+	 *            earth site latitude
+	 * @param siteLon -
+	 *            earth site longitude
+	 * @param x -
+	 *            x coordinates of the positions
+	 * @param y -
+	 *            y coordinates of the positions
+	 * @param z -
+	 *            z coordinates of the positions
+	 * @param latitude -
+	 *            latitudes of the body
+	 * @param longitude -
+	 *            longitudes of the body
+	 * @param pool -
+	 *            pool large batches are split on
+	 */
+	public static void compute(CEphemerisSource source, float distScale,
+			long[] times, float siteLat, float siteLon, float[] x, float[] y,
+			float[] z, double[] latitude, double[] longitude, ForkJoinPool pool) {
+		CEphemerisBatch batch = new CEphemerisBatch(source, distScale, times,
+				siteLat, siteLon, x, y, z, latitude, longitude, 0, times.length);
+		if (times.length <= SPLIT_THRESHOLD)
+			batch.computeRange();
+		else
+			pool.invoke(batch);
+	}
+
+	@Override
+	protected void compute() {
+		if (to - from <= SPLIT_THRESHOLD) {
+			computeRange();
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		invokeAll(new CEphemerisBatch(source, distScale, times, siteLat,
+				siteLon, x, y, z, latitude, longitude, from, mid),
+				new CEphemerisBatch(source, distScale, times, siteLat, siteLon,
+						x, y, z, latitude, longitude, mid, to));
+	}
+
+	private void computeRange() {
+		CAstroContext context = new CAstroContext();
+		double[] ecliptic = new double[3];
+		Vector3f position = new Vector3f();
+
+		for (int i = from; i < to; i++) {
+			context.set(times[i], siteLat, siteLon);
+			source.getEclipticCoords(context.getCenturies(), ecliptic);
+			CAstroMath.toHorizon(context.getHorizonMatrix(),
+					ecliptic[CEphemerisSource.LAMBDA],
+					ecliptic[CEphemerisSource.BETA],
+					ecliptic[CEphemerisSource.DISTANCE], position);
+
+			if (longitude != null)
+				longitude[i] = Math.atan2(position.z, -position.x);
+			if (latitude != null)
+				latitude[i] = Math.atan2(position.y, -position.x);
+			if (x != null)
+				x[i] = position.x * distScale;
+			if (y != null)
+				y[i] = position.y * distScale;
+			if (z != null)
+				z[i] = position.z * distScale;
+		}
+	}
+}
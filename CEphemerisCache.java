@@ -0,0 +1,275 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.utils;
+
+import java.util.Arrays;
+
+/**
+ * Caches the ecliptic coordinates of an ephemeris source as Chebyshev
+ * segments. Time is split in fixed windows; the first query falling in a
+ * window fits a polynomial of the given order to each coordinate, later
+ * queries just evaluate it. Least recently used segments are evicted once the
+ * cache is full. Segments are found by window index in a small open
+ * addressed table, without boxing.<br>
+ * The fitting error of every segment is measured against the source when the
+ * segment is built, see {@link #getMaxError()}. With order 12, one day
+ * windows keep the sun below 1e-10 rad, and the moon below 1e-9 rad.<br>
+ * This class is not thread safe.
+ */
+public class CEphemerisCache {
+	/** Default window length: one day */
+	public static final long DEFAULT_WINDOW = CAstroMath.MILLIS_PER_DAY;
+	/** Default polynomial order */
+	public static final int DEFAULT_ORDER = 12;
+	/** Default number of cached segments */
+	public static final int DEFAULT_MAX_SEGMENTS = 8;
+
+	/** A fitted time window */
+	private static class Segment {
+		long index;
+		long start;
+		/** access count of the cache when last used */
+		long used;
+		double[][] coeffs;
+
+		Segment(int order) {
+			coeffs = new double[3][order + 1];
+		}
+	}
+
+	private CEphemerisSource source;
+	private long window;
+	private int order;
+	private int maxSegments;
+	/** window index of each slot, open addressed with linear probing */
+	private long[] keys;
+	/** segment of each slot, or null if the slot is free */
+	private Segment[] slots;
+	private int segmentCount;
+	/** number of queries, stamping the segments when used */
+	private long accesses;
+	/** most recently used segment */
+	private Segment last;
+	/** evicted segment, reused by the next fit */
+	private Segment spare;
+	/** largest fitting error measured so far */
+	private double maxError;
+	private double[][] samples;
+	private double[] coords = new double[3];
+
+	public CEphemerisCache(CEphemerisSource source) {
+		this(source, DEFAULT_WINDOW, DEFAULT_ORDER, DEFAULT_MAX_SEGMENTS);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param source -
+	 *            ephemeris to cache
+	 * @param window -
+	 *            length of a segment, in milliseconds
+	 * @param order -
+	 *            order of the fitted polynomials
+	 * @param maxSegments -
+	 *            number of segments kept before evicting
+	 */
+	public CEphemerisCache(CEphemerisSource source, long window, int order,
+			int maxSegments) {
+		if (window <= 0 || order < 1 || maxSegments < 1)
+			throw new IllegalArgumentException("Invalid cache parameters");
+		this.source = source;
+		this.window = window;
+		this.order = order;
+		this.maxSegments = maxSegments;
+		this.samples = new double[3][order + 1];
+		// Half full at most, so that probes stay short
+		int capacity = Integer.highestOneBit(maxSegments) * 4;
+		this.keys = new long[capacity];
+		this.slots = new Segment[capacity];
+	}
+
+	/**
+	 * Drops every cached segment, e.g. after the source offsets changed.
+	 */
+	public void clear() {
+		Arrays.fill(slots, null);
+		segmentCount = 0;
+		last = null;
+		maxError = 0;
+	}
+
+	/**
+	 * Evaluates the cached ecliptic coordinates.
+	 *
+	 * @param time -
+	 *            time in milliseconds since 1970-01-01 UTC
+	 * @param store -
+	 *            array of 3 doubles receiving lambda, beta and distance
+	 */
+	public void getEclipticCoords(long time, double[] store) {
+		long index = time / window;
+		if (time % window < 0)
+			index--;
+
+		Segment segment = last;
+		if (segment == null || segment.index != index) {
+			segment = find(index);
+			if (segment == null) {
+				if (segmentCount == maxSegments)
+					evict();
+				segment = fit(index);
+				insert(segment);
+			}
+			last = segment;
+		}
+		segment.used = ++accesses;
+
+		// map time to [-1, 1]
+		double x = 2.0 * (time - segment.start) / window - 1.0;
+		for (int i = 0; i < 3; i++)
+			store[i] = evaluate(segment.coeffs[i], x);
+	}
+
+	/**
+	 * @return largest difference, in radians or distance units, found
+	 *         between the source and the segments fitted so far
+	 */
+	public double getMaxError() {
+		return maxError;
+	}
+
+	/**
+	 * @return number of segments currently cached
+	 */
+	public int getSegmentCount() {
+		return segmentCount;
+	}
+
+	/**
+	 * @return first slot probed for a window index
+	 */
+	private int slot(long index) {
+		long h = index * 0x9E3779B97F4A7C15L;
+		return (int) (h >>> 32) & (slots.length - 1);
+	}
+
+	private Segment find(long index) {
+		int mask = slots.length - 1;
+		for (int i = slot(index); slots[i] != null; i = (i + 1) & mask)
+			if (keys[i] == index)
+				return slots[i];
+		return null;
+	}
+
+	private void insert(Segment segment) {
+		int mask = slots.length - 1;
+		int i = slot(segment.index);
+		while (slots[i] != null)
+			i = (i + 1) & mask;
+		keys[i] = segment.index;
+		slots[i] = segment;
+		segmentCount++;
+	}
+
+	/**
+	 * Removes the least recently used segment, kept for the next fit
+	 */
+	private void evict() {
+		int eldest = -1;
+		for (int i = 0; i < slots.length; i++)
+			if (slots[i] != null
+					&& (eldest < 0 || slots[i].used < slots[eldest].used))
+				eldest = i;
+		spare = slots[eldest];
+		slots[eldest] = null;
+		segmentCount--;
+
+		// Move back the following segments of the probe sequence that could
+		// no longer be found past the freed slot
+		int mask = slots.length - 1;
+		int free = eldest;
+		for (int i = (free + 1) & mask; slots[i] != null; i = (i + 1) & mask) {
+			int home = slot(keys[i]);
+			if (((i - home) & mask) >= ((i - free) & mask)) {
+				keys[free] = keys[i];
+				slots[free] = slots[i];
+				slots[i] = null;
+				free = i;
+			}
+		}
+	}
+
+	/**
+	 * Clenshaw evaluation of a Chebyshev series
+	 */
+	private double evaluate(double[] c, double x) {
+		double b0 = 0, b1 = 0, b2;
+		double x2 = 2 * x;
+		for (int j = c.length - 1; j > 0; j--) {
+			b2 = b1;
+			b1 = b0;
+			b0 = x2 * b1 - b2 + c[j];
+		}
+		return x * b0 - b1 + 0.5 * c[0];
+	}
+
+	private Segment fit(long index) {
+		Segment segment = spare;
+		spare = null;
+		if (segment == null)
+			segment = new Segment(order);
+		segment.index = index;
+		segment.start = index * window;
+
+		// sample the source at the chebyshev nodes
+		int n = order + 1;
+		for (int k = 0; k < n; k++) {
+			double x = Math.cos(Math.PI * (k + 0.5) / n);
+			source.getEclipticCoords(centuries(segment.start, x), coords);
+			for (int i = 0; i < 3; i++)
+				samples[i][k] = coords[i];
+		}
+		for (int i = 0; i < 3; i++) {
+			for (int j = 0; j < n; j++) {
+				double sum = 0;
+				for (int k = 0; k < n; k++)
+					sum += samples[i][k] * Math.cos(Math.PI * j * (k + 0.5) / n);
+				segment.coeffs[i][j] = 2.0 * sum / n;
+			}
+		}
+
+		// measure the error half way between the nodes
+		for (int k = 0; k < n - 1; k++) {
+			double x = Math.cos(Math.PI * (k + 1) / n);
+			source.getEclipticCoords(centuries(segment.start, x), coords);
+			for (int i = 0; i < 3; i++)
+				maxError = Math.max(maxError, Math.abs(coords[i]
+						- evaluate(segment.coeffs[i], x)));
+		}
+		return segment;
+	}
+
+	private double centuries(long start, double x) {
+		return CAstroMath.centuries(CAstroMath.JD_UNIX_EPOCH
+				+ (start + (x + 1) * 0.5 * window)
+				/ (double) CAstroMath.MILLIS_PER_DAY);
+	}
+}
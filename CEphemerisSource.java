@@ -0,0 +1,44 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.utils;
+
+/**
+ * A body whose ecliptic coordinates can be evaluated at any instant.
+ */
+public interface CEphemerisSource {
+	/** Index of the ecliptic longitude in a coordinates array */
+	int LAMBDA = 0;
+	/** Index of the ecliptic latitude in a coordinates array */
+	int BETA = 1;
+	/** Index of the distance in a coordinates array */
+	int DISTANCE = 2;
+
+	/**
+	 * Evaluates the ecliptic coordinates of the body, offsets included.
+	 * Implementations must not change their own state.
+	 *
+	 * @param T -
+	 *            julian centuries since J2000.0
+	 * @param store -
+	 *            array of 3 doubles receiving lambda, beta and distance
+	 */
+	void getEclipticCoords(double T, double[] store);
+}
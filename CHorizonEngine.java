@@ -0,0 +1,142 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.utils;
+
+/**
+ * Projects a body to the local horizon of many earth sites at once. The
+ * ecliptic position, obliquity and sidereal time are computed once per
+ * instant; each site then costs a few multiplications, since the sine and
+ * cosine of its latitude and longitude are computed when the sites are set.
+ * Sites are kept in primitive arrays, so nothing is allocated per site or per
+ * update.<br>
+ * This class is not thread safe.
+ */
+public class CHorizonEngine {
+	private int siteCount;
+	/** cosine and sine of PI/2 - latitude, per site */
+	private double[] cosLat = new double[0];
+	private double[] sinLat = new double[0];
+	/** cosine and sine of the shifted longitude, per site */
+	private double[] cosLon = new double[0];
+	private double[] sinLon = new double[0];
+	private double[] ecliptic = new double[3];
+
+	/**
+	 * Set the observed earth sites.
+	 *
+	 * @param siteLat -
+	 *            earth sites latitudes
+	 * @param siteLon -
+	 *            earth sites longitudes
+	 * @param count -
+	 *            number of sites to read from the arrays
+	 */
+	public void setSites(float[] siteLat, float[] siteLon, int count) {
+		if (cosLat.length < count) {
+			cosLat = new double[count];
+			sinLat = new double[count];
+			cosLon = new double[count];
+			sinLon = new double[count];
+		}
+		siteCount = count;
+		for (int i = 0; i < count; i++) {
+			double ay = -(siteLat[i] - Math.PI / 2);
+			double lon = siteLon[i] + (float) (Math.PI * 3 / 2);
+			cosLat[i] = Math.cos(ay);
+			sinLat[i] = Math.sin(ay);
+			cosLon[i] = Math.cos(lon);
+			sinLon[i] = Math.sin(lon);
+		}
+	}
+
+	/**
+	 * @return number of observed sites
+	 */
+	public int getSiteCount() {
+		return siteCount;
+	}
+
+	/**
+	 * Computes the position of a body for every site, as an observer set to
+	 * that site would. Any output array may be null if not needed.
+	 *
+	 * @param source -
+	 *            series of the body
+	 * @param distScale -
+	 *            factor applied to the distance
+	 * @param time -
+	 *            time in milliseconds since 1970-01-01 UTC
+	 * @param x -
+	 *            x coordinates of the positions
+	 * @param y -
+	 *            y coordinates of the positions
+	 * @param z -
+	 *            z coordinates of the positions
+	 * @param latitude -
+	 *            latitudes of the body
+	 * @param longitude -
+	 *            longitudes of the body
+	 */
+	public void compute(CEphemerisSource source, float distScale, long time,
+			float[] x, float[] y, float[] z, double[] latitude,
+			double[] longitude) {
+		// Shared terms
+		double T = CAstroMath.centuries(CAstroMath.julianDate(time));
+		source.getEclipticCoords(T, ecliptic);
+		double lambda = ecliptic[CEphemerisSource.LAMBDA];
+		double beta = ecliptic[CEphemerisSource.BETA];
+		double r = ecliptic[CEphemerisSource.DISTANCE];
+		double ex = r * Math.sin(beta);
+		double ey = r * Math.sin(lambda) * Math.cos(beta);
+		double ez = r * Math.cos(lambda) * Math.cos(beta);
+
+		double eta = 0.409093 - 0.000227 * T; // obliquity of the ecliptic
+		double cx = Math.cos(eta), sx = -Math.sin(eta);
+		double gmst = (4.894961 + 230121.675315 * T) % (Math.PI * 2);
+		double cosG = Math.cos(gmst), sinG = Math.sin(gmst);
+
+		for (int i = 0; i < siteCount; i++) {
+			// Ry
+			double a = cosLat[i] * ex + sinLat[i] * ez;
+			double c = cosLat[i] * ez - sinLat[i] * ex;
+			// Rx
+			double b = cx * ey - sx * c;
+			c = sx * ey + cx * c;
+			// Rz, with the local sidereal time by angle addition
+			double cz = cosG * cosLon[i] - sinG * sinLon[i];
+			double sz = -(sinG * cosLon[i] + cosG * sinLon[i]);
+			float px = (float) (cz * a - sz * b);
+			float py = (float) (sz * a + cz * b);
+			float pz = (float) c;
+
+			if (longitude != null)
+				longitude[i] = Math.atan2(pz, -px);
+			if (latitude != null)
+				latitude[i] = Math.atan2(py, -px);
+			if (x != null)
+				x[i] = px * distScale;
+			if (y != null)
+				y[i] = py * distScale;
+			if (z != null)
+				z[i] = pz * distScale;
+		}
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.utils;
+
+/**
+ * Reads the ecliptic coordinates of another observer back from Chebyshev
+ * tables instead of evaluating its series at each update. The tables are
+ * filled lazily, one time window at a time, and the fitting error measured
+ * while filling them is added to the error of the wrapped observer.
+ */
+public class CInterpolatedObserver extends CAbstractObserver {
+	/** Default table window: one day, short enough for the moon series */
+	public static final long DEFAULT_WINDOW = CEphemerisCache.DEFAULT_WINDOW;
+
+	private CCelestialObserver series;
+
+	public CInterpolatedObserver(CCelestialObserver series) {
+		this(series, DEFAULT_WINDOW, CEphemerisCache.DEFAULT_ORDER);
+	}
+
+	/**
+	 * CONSTRUCTOR: build an observer interpolating another one, starting at
+	 * its time and site.
+	 *
+	 * @param series -
+	 *            observer whose series is tabulated
+	 * @param window -
+	 *            time covered by a table, in milliseconds
+	 * @param order -
+	 *            order of the fitted polynomials
+	 */
+	public CInterpolatedObserver(CCelestialObserver series, long window,
+			int order) {
+		super(series.getCurrentTime(), 0, 0, 0);
+		this.series = series;
+		setSiteLatitude(series.getSiteLatitude());
+		setSiteLongitude(series.getSiteLongitude());
+
+		setEphemerisCache(new CEphemerisCache(series, window, order,
+				CEphemerisCache.DEFAULT_MAX_SEGMENTS));
+	}
+
+	public void getEclipticCoords(double T, double[] store) {
+		series.getEclipticCoords(T, store);
+	}
+
+	public float getDistanceScale() {
+		return series.getDistanceScale();
+	}
+
+	/**
+	 * @return error of the wrapped series plus the largest fitting error
+	 *         measured so far
+	 */
+	public double getMaxError() {
+		CEphemerisCache cache = getEphemerisCache();
+		return series.getMaxError() + (cache != null ? cache.getMaxError() : 0);
+	}
+}
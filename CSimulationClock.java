@@ -0,0 +1,117 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.utils;
+
+/**
+ * Simulated time shared by all the sky components. Time is kept in
+ * nanoseconds since 1970-01-01 UTC, which covers years 1678 to 2261. It
+ * advances once per frame by the frame time multiplied by the time scale,
+ * never backward. A time scale of 0 pauses the simulation, values above 1
+ * give a time-lapse.
+ * <p>
+ * {@link #setTime(long)} may jump to any time, past ones included. The sky
+ * components then move to the new time without replaying what lies between:
+ * after a jump back, or ahead more than two days, sky event listeners are
+ * resynced to the current day or night, and no event is fired for the skipped
+ * interval.
+ */
+public class CSimulationClock {
+	private static final double NANOS_PER_SECOND = 1e9;
+	private static final long NANOS_PER_MILLI = 1000000L;
+
+	/** current time, in nanoseconds since 1970-01-01 UTC */
+	private long time;
+	/** simulated seconds per real second */
+	private double timeScale = 1;
+	/** fraction of nanosecond not yet applied */
+	private double carry;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param startTime -
+	 *            start time in milliseconds since 1970-01-01 UTC
+	 */
+	public CSimulationClock(long startTime) {
+		setTime(startTime);
+	}
+
+	/**
+	 * Advances the clock.
+	 *
+	 * @param tpf -
+	 *            Real time per frame, in seconds
+	 */
+	public void advance(float tpf) {
+		if (tpf <= 0)
+			return;
+		double step = tpf * timeScale * NANOS_PER_SECOND + carry;
+		long nanos = (long) step;
+		carry = step - nanos;
+		time += nanos;
+	}
+
+	/**
+	 * @return current time, in nanoseconds since 1970-01-01 UTC
+	 */
+	public long getTimeNanos() {
+		return time;
+	}
+
+	/**
+	 * @return current time, in milliseconds since 1970-01-01 UTC
+	 */
+	public long getTime() {
+		long millis = time / NANOS_PER_MILLI;
+		if (time % NANOS_PER_MILLI < 0)
+			millis--;
+		return millis;
+	}
+
+	/**
+	 * @return simulated seconds per real second
+	 */
+	public double getTimeScale() {
+		return timeScale;
+	}
+
+	/**
+	 * Jumps to the given time, earlier or later than the current one. Sky
+	 * event listeners are resynced to the new time, not fired for the events
+	 * jumped over.
+	 *
+	 * @param time -
+	 *            time in milliseconds since 1970-01-01 UTC
+	 */
+	public void setTime(long time) {
+		this.time = time * NANOS_PER_MILLI;
+		this.carry = 0;
+	}
+
+	/**
+	 * Set simulated seconds per real second, 0 to pause
+	 */
+	public void setTimeScale(double timeScale) {
+		if (timeScale < 0 || Double.isNaN(timeScale))
+			throw new IllegalArgumentException("Time scale must be positive");
+		this.timeScale = timeScale;
+	}
+}
@@ -0,0 +1,432 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.xutils;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.jme.renderer.ColorRGBA;
+import com.jme.util.geom.BufferUtils;
+
+/**
+ * Thread shading the dome colors away from the render thread. Each request is
+ * an immutable {@link Job} holding everything the colors depend on; the
+ * thread shades the latest one in a spare set of color buffers and publishes
+ * it as a {@link Frame}, along with the vertices it changed and the sky
+ * irradiance. Jobs submitted while the thread is busy replace each other,
+ * and a frame that was not picked up is replaced by the next one, so neither
+ * side ever waits for the other. A job that fails is logged, counted and
+ * dropped, the thread going on with the next one.
+ */
+public class CSkyBackgroundSolver extends Thread {
+	/**
+	 * Snapshot of the sun directions and sky parameters a set of dome colors
+	 * is shaded from. Nothing referenced by a job may change once submitted.
+	 */
+	public static final class Job {
+		final CSkyModel model;
+		final int sunSamples;
+		final int heightSamples;
+		final int angleSamples;
+		final float[] sunLatitude;
+		final float[] sunLongitude;
+		final ColorRGBA skyColor;
+		final boolean night;
+		final float[][] normalX;
+		final float[][] normalY;
+		final float[][] normalZ;
+		final float[][] solidAngles;
+
+		/**
+		 * @param model -
+		 *            copy of the shading parameters
+		 * @param table -
+		 *            table whose resolution is used to bake the colors, or
+		 *            null to evaluate the model at each vertex
+		 * @param sunLatitude -
+		 *            latitudes of the suns
+		 * @param sunLongitude -
+		 *            longitudes of the suns
+		 * @param skyColor -
+		 *            color the suns contributions are added to
+		 * @param night -
+		 *            haze state of the frame, true to have a black haze
+		 * @param normalX -
+		 *            x components of the vertex normals of each batch
+		 * @param normalY -
+		 *            y components of the vertex normals of each batch
+		 * @param normalZ -
+		 *            z components of the vertex normals of each batch
+		 * @param solidAngles -
+		 *            solid angle around each vertex of each batch, for the
+		 *            irradiance
+		 */
+		public Job(CSkyModel model, CSkyRadianceTable table,
+				float[] sunLatitude, float[] sunLongitude, ColorRGBA skyColor,
+				boolean night, float[][] normalX, float[][] normalY,
+				float[][] normalZ, float[][] solidAngles) {
+			this.model = model;
+			sunSamples = table != null ? table.getSunSamples() : 0;
+			heightSamples = table != null ? table.getHeightSamples() : 0;
+			angleSamples = table != null ? table.getAngleSamples() : 0;
+			this.sunLatitude = sunLatitude;
+			this.sunLongitude = sunLongitude;
+			this.skyColor = new ColorRGBA(skyColor);
+			this.night = night;
+			this.normalX = normalX;
+			this.normalY = normalY;
+			this.normalZ = normalZ;
+			this.solidAngles = solidAngles;
+		}
+	}
+
+	/**
+	 * Dome colors shaded from a job, with the vertices changed since an
+	 * earlier frame and the irradiance of the colors
+	 */
+	public static final class Frame {
+		final FloatBuffer[] colors;
+		final boolean night;
+		final long sequence;
+		final long changedSince;
+		final int[][] changed;
+		final float[] irradiance;
+
+		Frame(FloatBuffer[] colors, boolean night, long sequence,
+				long changedSince, int[][] changed, float[] irradiance) {
+			this.colors = colors;
+			this.night = night;
+			this.sequence = sequence;
+			this.changedSince = changedSince;
+			this.changed = changed;
+			this.irradiance = irradiance;
+		}
+
+		/**
+		 * @param batch -
+		 *            index of a dome batch
+		 * @return colors of that batch, four floats per vertex
+		 */
+		public FloatBuffer getColors(int batch) {
+			return colors != null ? colors[batch] : null;
+		}
+
+		/**
+		 * @return true if the haze of this frame is black
+		 */
+		public boolean isNight() {
+			return night;
+		}
+
+		/**
+		 * @return number of this frame among those shaded by the solver,
+		 *         from 1
+		 */
+		public long getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * @return sequence of the frame the changed vertices are relative
+		 *         to, 0 if all vertices are flagged
+		 */
+		public long getChangedSince() {
+			return changedSince;
+		}
+
+		/**
+		 * @param batch -
+		 *            index of a dome batch
+		 * @return first vertex and vertex after the last of each range of
+		 *         vertices whose color differs from the frame
+		 *         {@link #getChangedSince()}, or null if that is 0
+		 */
+		public int[] getChangedRanges(int batch) {
+			return changed != null ? changed[batch] : null;
+		}
+
+		/**
+		 * @param store -
+		 *            array receiving the 27 irradiance coefficients of the
+		 *            colors, or null
+		 * @return store
+		 */
+		public float[] getIrradiance(float[] store) {
+			if (store == null)
+				store = new float[CSkyIrradiance.COEFFICIENTS * 3];
+			System.arraycopy(irradiance, 0, store, 0, irradiance.length);
+			return store;
+		}
+	}
+
+	private final AtomicReference<Job> pending = new AtomicReference<Job>();
+	private final AtomicReference<Frame> ready = new AtomicReference<Frame>();
+	/** Buffers handed back by the render thread */
+	private final AtomicReference<FloatBuffer[]> recycled = new AtomicReference<FloatBuffer[]>();
+	private volatile boolean running = true;
+	/** Written by the solver thread only */
+	private volatile int failedJobs;
+	private volatile RuntimeException lastError;
+	private volatile long doneJobs;
+
+	// owned by the solver thread
+	/** Sky model of each sun, the first one baked in the table */
+	private CSkyModel[] models = { new CSkyModel() };
+	private CSkyModel appliedModel;
+	private CSkyRadianceTable table;
+	private FloatBuffer[] work;
+	private float[] store = new float[0];
+	/** Copy of the colors of the last frame, or null if none is valid */
+	private FloatBuffer[] shown;
+	/** Vertices changed by the job being published, in each batch */
+	private CDirtyRanges[] changed;
+	private long sequence;
+	private CSkyIrradiance projection = new CSkyIrradiance();
+
+	public CSkyBackgroundSolver() {
+		super("Sky Solver");
+		setDaemon(true);
+	}
+
+	/**
+	 * Asks for the dome colors of a snapshot, replacing any job not started
+	 * yet. Never blocks.
+	 */
+	public void submit(Job job) {
+		pending.set(job);
+		LockSupport.unpark(this);
+	}
+
+	/**
+	 * Takes the latest shaded frame. Never blocks.
+	 * 
+	 * @return the frame, or null if none was completed since the last call
+	 */
+	public Frame poll() {
+		return ready.getAndSet(null);
+	}
+
+	/**
+	 * Hands back color buffers no longer used by the dome, so that the next
+	 * frames are shaded without allocating
+	 */
+	public void recycle(FloatBuffer[] colors) {
+		recycled.set(colors);
+	}
+
+	/**
+	 * @return number of jobs done so far, failed ones included. A job is
+	 *         counted once its frame is ready, or once it is dropped.
+	 */
+	public long getDoneJobCount() {
+		return doneJobs;
+	}
+
+	/**
+	 * @return number of jobs dropped because their shading failed
+	 */
+	public int getFailedJobCount() {
+		return failedJobs;
+	}
+
+	/**
+	 * @return error of the last job that failed, or null if none did
+	 */
+	public RuntimeException getLastError() {
+		return lastError;
+	}
+
+	/** Stops the thread once the current job is done */
+	public void shutdown() {
+		running = false;
+		LockSupport.unpark(this);
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			Job job = pending.getAndSet(null);
+			if (job == null) {
+				LockSupport.park(this);
+				continue;
+			}
+			int[][] ranges;
+			float[] coefficients;
+			try {
+				solve(job);
+				ranges = diff(job);
+				coefficients = project(job);
+			} catch (RuntimeException e) {
+				// Drop the job, and compare the next frame to none
+				Logger.getLogger(CSkyBackgroundSolver.class.getName()).log(
+						Level.WARNING, "Sky solver job failed", e);
+				lastError = e;
+				failedJobs++;
+				shown = null;
+				doneJobs++;
+				continue;
+			}
+			Frame stale = publish(job, ranges, coefficients);
+			// An unclaimed frame is stale: take its buffers for the next job
+			work = stale != null ? stale.colors : recycled.getAndSet(null);
+			doneJobs++;
+		}
+	}
+
+	/**
+	 * Makes the shaded colors the ready frame. The vertices changed by a
+	 * frame replaced before being taken are flagged in the new one, so that
+	 * the ranges stay relative to the last frame taken.
+	 * 
+	 * @return the replaced frame, or null
+	 */
+	private Frame publish(Job job, int[][] ranges, float[] coefficients) {
+		long since = ranges != null ? sequence : 0;
+		sequence++;
+		while (true) {
+			Frame stale = ready.get();
+			int[][] changes = ranges;
+			long changesSince = since;
+			if (stale != null && ranges != null && stale.changedSince != 0) {
+				changes = new int[ranges.length][];
+				for (int i = 0; i < ranges.length; i++) {
+					mark(changed[i], ranges[i]);
+					mark(changed[i], stale.changed[i]);
+					changes[i] = changed[i].getRanges(0);
+					changed[i].clear();
+				}
+				changesSince = stale.changedSince;
+			} else if (stale != null)
+				changesSince = 0;
+			Frame frame = new Frame(work, job.night, sequence, changesSince,
+					changesSince != 0 ? changes : null, coefficients);
+			// Retried if the frame is taken meanwhile
+			if (ready.compareAndSet(stale, frame))
+				return stale;
+		}
+	}
+
+	private static void mark(CDirtyRanges dirty, int[] ranges) {
+		for (int r = 0; r < ranges.length; r += 2)
+			dirty.mark(ranges[r], ranges[r + 1]);
+	}
+
+	/**
+	 * Compares the shaded colors to those of the previous frame, keeping a
+	 * copy of them for the next one
+	 * 
+	 * @return ranges of changed vertices of each batch, or null if there is
+	 *         no previous frame to compare to
+	 */
+	private int[][] diff(Job job) {
+		int batchCount = job.normalX.length;
+		boolean compare = shown != null && shown.length == batchCount;
+		if (!compare) {
+			shown = new FloatBuffer[batchCount];
+			changed = new CDirtyRanges[batchCount];
+		}
+		int[][] ranges = compare ? new int[batchCount][] : null;
+		for (int i = 0; i < batchCount; i++) {
+			int count = job.normalX[i].length;
+			if (shown[i] == null || shown[i].capacity() < count * 4
+					|| changed[i].getVertexCount() != count) {
+				shown[i] = BufferUtils.createFloatBuffer(count * 4);
+				changed[i] = new CDirtyRanges(count);
+				ranges = null;
+			}
+			FloatBuffer colors = work[i].duplicate();
+			colors.clear();
+			colors.limit(count * 4);
+			if (ranges != null) {
+				changed[i].markChanged(shown[i], colors);
+				ranges[i] = changed[i].getRanges(0);
+				changed[i].clear();
+			}
+			shown[i].clear();
+			shown[i].put(colors);
+		}
+		return ranges;
+	}
+
+	/**
+	 * @return irradiance coefficients of the shaded colors
+	 */
+	private float[] project(Job job) {
+		projection.begin();
+		for (int i = 0; i < job.normalX.length; i++)
+			projection.add(job.normalX[i], job.normalY[i], job.normalZ[i],
+					job.solidAngles[i], work[i], job.normalX[i].length);
+		projection.end();
+		return projection.getCoefficients(null);
+	}
+
+	private void solve(Job job) {
+		// Rebake only when the parameters change, not at each job
+		int sunCount = job.sunLatitude.length;
+		if (models.length < sunCount) {
+			CSkyModel[] grown = new CSkyModel[sunCount];
+			System.arraycopy(models, 0, grown, 0, models.length);
+			for (int i = models.length; i < sunCount; i++) {
+				grown[i] = new CSkyModel();
+				grown[i].set(models[0]);
+			}
+			models = grown;
+		}
+		if (appliedModel != job.model) {
+			for (int i = 0; i < models.length; i++)
+				models[i].set(job.model);
+			appliedModel = job.model;
+		}
+		CSkyModel model = models[0];
+		if (job.sunSamples == 0)
+			table = null;
+		else if (table == null || table.getSunSamples() != job.sunSamples
+				|| table.getHeightSamples() != job.heightSamples
+				|| table.getAngleSamples() != job.angleSamples)
+			table = new CSkyRadianceTable(model, job.sunSamples,
+					job.heightSamples, job.angleSamples);
+
+		int batchCount = job.normalX.length;
+		if (work == null || work.length != batchCount)
+			work = new FloatBuffer[batchCount];
+		for (int i = 0; i < batchCount; i++) {
+			int count = job.normalX[i].length;
+			if (work[i] == null || work[i].capacity() < count * 4)
+				work[i] = BufferUtils.createFloatBuffer(count * 4);
+			if (store.length < count * 4)
+				store = new float[count * 4];
+		}
+
+		for (int s = 0; s < sunCount; s++)
+			models[s].setSun(job.sunLatitude[s], job.sunLongitude[s]);
+		if (table != null)
+			table.update();
+		for (int i = 0; i < batchCount; i++)
+			CSkyColorSolver.compute(models, sunCount, job.skyColor, table,
+					job.normalX[i], job.normalY[i], job.normalZ[i], work[i],
+					null, 0, job.normalX[i].length, store, ForkJoinPool
+							.commonPool());
+	}
+}
@@ -0,0 +1,204 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.xutils;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.jme.renderer.ColorRGBA;
+
+/**
+ * Sets a range of dome vertices to a base color plus the sky colors of
+ * several suns, reading the vertex normals from separate component arrays
+ * and writing straight into the color buffer. All suns are shaded in a single
+ * pass, which writes each vertex color once as four floats; given dirty
+ * ranges, only the vertices whose color changes are written, and flagged.
+ * Large domes are split across the cores of a fork-join pool; domes up to
+ * {@link #SPLIT_THRESHOLD} vertices are shaded on the calling thread.
+ */
+public final class CSkyColorSolver extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+
+	/** Number of vertices below which a range is not split */
+	public static final int SPLIT_THRESHOLD = 4096;
+
+	private final CSkyModel[] suns;
+	private final int sunCount;
+	private final ColorRGBA base;
+	private final CSkyRadianceTable table;
+	private final float[] x;
+	private final float[] y;
+	private final float[] z;
+	private final FloatBuffer colors;
+	/** Vertices written, or null */
+	private final CDirtyRanges dirty;
+	private final float[] store;
+	private final int from;
+	private final int to;
+
+	private CSkyColorSolver(CSkyModel[] suns, int sunCount, ColorRGBA base,
+			CSkyRadianceTable table, float[] x, float[] y, float[] z,
+			FloatBuffer colors, CDirtyRanges dirty, float[] store, int from,
+			int to) {
+		this.suns = suns;
+		this.sunCount = sunCount;
+		this.base = base;
+		this.table = table;
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		this.colors = colors;
+		this.dirty = dirty;
+		this.store = store;
+		this.from = from;
+		this.to = to;
+	}
+
+	/**
+	 * Sets the dome vertices to a base color plus the sky colors of several
+	 * suns, in a single pass.
+	 * 
+	 * @param suns -
+	 *            models with the same shading parameters, each with a sun set
+	 * @param sunCount -
+	 *            number of suns to shade
+	 * @param base -
+	 *            color the sun colors are added to
+	 * @param table -
+	 *            colors baked with the shading parameters of the suns, or null
+	 *            to evaluate the models
+	 * @param x -
+	 *            x components of the unit vertex normals
+	 * @param y -
+	 *            y components of the unit vertex normals
+	 * @param z -
+	 *            z components of the unit vertex normals
+	 * @param colors -
+	 *            vertex colors, four floats per vertex
+	 * @param dirty -
+	 *            ranges flagging the vertices whose color changes, or null
+	 *            to write all vertices
+	 * @param from -
+	 *            index of the first vertex
+	 * @param to -
+	 *            index after the last vertex
+	 * @param store -
+	 *            scratch array of four floats per vertex
+	 * @param pool -
+	 *            pool large domes are split on
+	 */
+	public static void compute(CSkyModel[] suns, int sunCount, ColorRGBA base,
+			CSkyRadianceTable table, float[] x, float[] y, float[] z,
+			FloatBuffer colors, CDirtyRanges dirty, int from, int to,
+			float[] store, ForkJoinPool pool) {
+		if (to - from <= SPLIT_THRESHOLD)
+			shadeSuns(suns, sunCount, base, table, x, y, z, colors, dirty,
+					from, to, store);
+		else
+			pool.invoke(new CSkyColorSolver(suns, sunCount, base, table, x, y,
+					z, colors, dirty, store, from, to));
+	}
+
+	@Override
+	protected void compute() {
+		if (to - from <= SPLIT_THRESHOLD) {
+			shadeSuns(suns, sunCount, base, table, x, y, z, colors, dirty,
+					from, to, store);
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		invokeAll(new CSkyColorSolver(suns, sunCount, base, table, x, y, z,
+				colors, dirty, store, from, mid), new CSkyColorSolver(suns,
+				sunCount, base, table, x, y, z, colors, dirty, store, mid, to));
+	}
+
+	/**
+	 * Writes each vertex color once. The previous color is only read to track
+	 * dirty ranges. Uses absolute buffer accesses only, so that ranges can be
+	 * shaded concurrently.
+	 */
+	private static void shadeSuns(CSkyModel[] suns, int sunCount,
+			ColorRGBA base, CSkyRadianceTable table, float[] x, float[] y,
+			float[] z, FloatBuffer colors, CDirtyRanges dirty, int from, int to,
+			float[] store) {
+		if (sunCount == 0) {
+			for (int c = from * 4; c < to * 4; c++)
+				store[c] = 0;
+		} else if (table != null) {
+			table.shade(suns, sunCount, x, y, z, from, to, store);
+		} else {
+			// Sun colors are added in the scratch array itself
+			for (int n = 0; n < sunCount; n++)
+				suns[n].shade(x, y, z, from, to, store, n > 0);
+		}
+
+		write(base, store, colors, dirty, from, to);
+	}
+
+	/**
+	 * Sets dome vertices to a base color plus shaded colors, the final write
+	 * of the shading
+	 * 
+	 * @param base -
+	 *            color the shaded colors are added to
+	 * @param store -
+	 *            shaded colors, four floats per vertex
+	 * @param colors -
+	 *            vertex colors, four floats per vertex
+	 * @param dirty -
+	 *            ranges flagging the vertices whose color changes, or null
+	 *            to write all vertices
+	 * @param from -
+	 *            index of the first vertex
+	 * @param to -
+	 *            index after the last vertex
+	 */
+	public static void write(ColorRGBA base, float[] store,
+			FloatBuffer colors, CDirtyRanges dirty, int from, int to) {
+		for (int v = from; v < to; v++) {
+			int c = v * 4;
+			float r = base.r + store[c];
+			float g = base.g + store[c + 1];
+			float b = base.b + store[c + 2];
+			float a = base.a + store[c + 3];
+			if (dirty != null) {
+				if (isSame(colors, c, r) && isSame(colors, c + 1, g)
+						&& isSame(colors, c + 2, b) && isSame(colors, c + 3, a))
+					continue;
+				dirty.mark(v);
+			}
+			colors.put(c, r);
+			colors.put(c + 1, g);
+			colors.put(c + 2, b);
+			colors.put(c + 3, a);
+		}
+	}
+
+	/**
+	 * @return true if a buffer already holds a value, undefined values being
+	 *         equal to each other
+	 */
+	private static boolean isSame(FloatBuffer colors, int index, float value) {
+		return Float.floatToIntBits(colors.get(index)) == Float
+				.floatToIntBits(value);
+	}
+}
@@ -20,11 +20,20 @@
 
 package jives.xutils;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
 
+import jives.utils.CAstroContext;
+import jives.utils.CCelestialObserver;
 import jives.utils.CMoonObserver;
+import jives.utils.CSimulationClock;
+import jives.utils.CSkyEventListener;
+import jives.utils.CSkyEventSolver;
 import jives.utils.CSunObserver;
 import jives.utils.ResourceLoader;
 
@@ -56,171 +65,36 @@ import com.jmex.effects.LensFlare;
 import com.jmex.effects.LensFlareFactory;
 
 public class CSkyDome {
-	/**
-	 * Representation of sky color in 3d space
-	 */
-	class ColorXYZ {
-		private float x = 0.0f;
-		private float y = 0.0f;
-		private float z = 0.0f;
-		private float r = 0.0f;
-		private float g = 0.0f;
-		private float b = 0.0f;
-		private float a = 1.0f;
-		private float hue = 0.0f;
-		private float saturation = 0.0f;
-		private float value = 0.0f;
-
-		public ColorXYZ(float x, float y, float z) {
-			this.x = x;
-			this.y = y;
-			this.z = z;
-		}
-
-		public void clamp() {
-			if (r < 0)
-				r = 0;
-			if (g < 0)
-				g = 0;
-			if (b < 0)
-				b = 0;
-			if (r > 1)
-				r = 1;
-			if (g > 1)
-				g = 1;
-			if (b > 1)
-				b = 1;
-		}
-
-		/**
-		 * Converte HSV to RGB
-		 */
-		public ColorXYZ convertHSVtoRGB() {
-			if (FastMath.abs(saturation) < EPSILON) { // achromatic (grey)
-				this.r = value;
-				this.g = value;
-				this.b = value;
-				this.a = value;
-			}
-
-			hue /= 60.0f; // sector 0 to 5
-			int sector = (int) FastMath.floor(hue);
-
-			float f = hue - sector; // factorial part of hue
-			float p = value * (1.0f - saturation);
-			float q = value * (1.0f - saturation * f);
-			float t = value * (1.0f - saturation * (1.0f - f));
-			switch (sector) {
-			case 0:
-				this.r = value;
-				this.g = t;
-				this.b = p;
-				break;
-			case 1:
-				this.r = q;
-				this.g = value;
-				this.b = p;
-				break;
-			case 2:
-				this.r = p;
-				this.g = value;
-				this.b = t;
-				break;
-			case 3:
-				this.r = p;
-				this.g = q;
-				this.b = value;
-				break;
-			case 4:
-				this.r = t;
-				this.g = p;
-				this.b = value;
-				break;
-			default: // case 5:
-				this.r = value;
-				this.g = p;
-				this.b = q;
-				break;
-			}
-			return this;
-		}
-
-		/**
-		 * Converte RGB to HSV
-		 */
-		public ColorXYZ convertRGBtoHSV() {
-			float minColor = Math.min(Math.min(r, g), b);
-			float maxColor = Math.max(Math.max(r, g), b);
-			float delta = maxColor - minColor;
-
-			this.value = maxColor; // Value
-			if (!(FastMath.abs(maxColor) < EPSILON)) {
-				this.saturation = delta / maxColor; // Saturation
-			} else { // r = g = b = 0
-				this.saturation = 0.0f; // Saturation = 0
-				this.hue = -1; // Hue = undefined
-				return this;
-			}
-
-			if (FastMath.abs(r - maxColor) < EPSILON)
-				this.hue = (g - b) / delta; // between yellow & magenta
-			else if (FastMath.abs(g - maxColor) < EPSILON)
-				this.hue = 2.0f + (b - r) / delta; // between cyan & yellow
-			else
-				this.hue = 4.0f + (r - g) / delta; // between magenta & cyan
-
-			this.hue *= 60.0f; // degrees
-
-			if (this.hue < 0.0f)
-				this.hue += 360.0f; // positive
-			return this;
-		}
-
-		/**
-		 * Converte XYZ to RGB color
-		 */
-		public ColorXYZ convertXYZtoRGB() {
-			this.r = 3.240479f * x - 1.537150f * y - 0.498535f * z;
-			this.g = -0.969256f * x + 1.875992f * y + 0.041556f * z;
-			this.b = 0.055648f * x - 0.204043f * y + 1.057311f * z;
-			return this;
-		}
-
-		/**
-		 * Retorna o RGBA color
-		 */
-		public ColorRGBA getRGBA() {
-			return new ColorRGBA(r, g, b, a);
-		}
-
-		public float getValue() {
-			return this.value;
-		}
-
-		public void setGammaCorrection(float gammaCorrection) {
-			r = FastMath.pow(r, gammaCorrection);
-			g = FastMath.pow(g, gammaCorrection);
-			b = FastMath.pow(b, gammaCorrection);
-		}
-
-		public void setValue(float value) {
-			this.value = value;
-		}
-	}
-
 	/** the Moon */
 	public class Moon {
+		/**
+		 * Observer of this moon if it is a CMoonObserver, null otherwise;
+		 * see {@link #getObserver()}
+		 */
 		public CMoonObserver moonObserver;
+		CCelestialObserver observer;
 		public Node moonNode;
 		// The moonlight and its node
 		public PointLight light;
 		// The moon lens flare effect object.
 		public Quad moonFlareEffect;
+
+		/**
+		 * @return observer of this moon, whatever its tier
+		 */
+		public CCelestialObserver getObserver() {
+			return observer;
+		}
 	}
 
 	/** the Sun */
 	public class Sun {
+		/**
+		 * Observer of this sun if it is a CSunObserver, null otherwise; see
+		 * {@link #getObserver()}
+		 */
 		public CSunObserver sunObserver;
+		CCelestialObserver observer;
 		public SimpleLightNode sunNode;
 		// The sunlight and its node
 		public PointLight light;
@@ -230,78 +104,102 @@ public class CSkyDome {
 		public float sizeMult;
 		// Node to pick geometry occlusion from
 		public Node pickNode;
+		// Rise, set and twilight events of this sun
+		public CSkyEventSolver eventSolver;
+		// Whether the night time lightings are applied
+		boolean night;
+		// Whether lightings must be set from the current sun position
+		boolean dayNightPending = true;
+		// Position and day/night state the sky was last colored with
+		Vector3f shadedPosition = new Vector3f();
+		float shadedLatitude;
+		float shadedLongitude;
+		boolean shadedNight;
+		// Keyframed sky colors of this sun, or null
+		CSkyKeyframeCache keyframeCache;
+
+		/**
+		 * @return observer of this sun, whatever its tier
+		 */
+		public CCelestialObserver getObserver() {
+			return observer;
+		}
 	}
 
 	public static final float INFINITY = 3.3e+38f;
 	public static final float EPSILON = 0.000001f;
-	private static final int RAD_SAMPLES = 12;
+	/** Number of vertices shaded between two checks of the recolor budget */
+	private static final int RECOLOR_CHUNK = 256;
+	/** Default sun motion recoloring the sky: a quarter of degree */
+	public static final float DEFAULT_RECOLOR_THRESHOLD = FastMath.PI / 720;
+	/** Default number of dome planes, horizon to zenith */
+	public static final int DEFAULT_PLANES = 12;
+	/** Default number of dome vertices around each plane */
+	public static final int DEFAULT_RADIAL_SAMPLES = 20;
 	// shading parameters
 	private ColorRGBA skyColor;
-	private float turbidity = 2.0f;
-	private boolean isLinearExpControl;
-	private float exposure = 18.0f;
-	private float overcast;
-	private float gammaCorrection = 2.5f;
+	private CSkyModel skyModel = new CSkyModel();
+	/** Baked sky colors, or null to evaluate the model at each vertex */
+	private CSkyRadianceTable radianceTable;
+	/** Sky model of each sun, the first being the dome one */
+	private CSkyModel[] sunModels = new CSkyModel[0];
+	private int sunModelsRevision;
 	// used at update color
-	private float chi;
-	private float zenithLuminance;
-	private float zenithX;
-	private float zenithY;
-	private float[] perezLuminance;
-	private float[] perezX;
-	private float[] perezY;
-	private ColorXYZ color;
-	private ColorXYZ colorTemp;
-	private ColorRGBA additionColor;
 	private TriangleBatch batch;
 	private FloatBuffer colorBuf;
 	private FloatBuffer normalBuf;
-	private Vector3f vertex = new Vector3f();
 	private ColorRGBA vertexColor = new ColorRGBA();
-	private float gamma;
-	private float cosTheta;
-	private float cosGamma2;
-	private float x_value;
-	private float y_value;
-	private float yClear;
-	private float yOver;
-
-	private float _Y;
-
-	private float _X;
-
-	private float _Z;
-
-	/** Distribution coefficients for the luminance(Y) distribution function */
-	private float distributionLuminance[][] = { // Perez distributions
-	{ 0.17872f, -1.46303f }, // a = darkening or brightening of the horizon
-			{ -0.35540f, 0.42749f }, // b = luminance gradient near the
-			// horizon,
-			{ -0.02266f, 5.32505f }, // c = relative intensity of the
-			// circumsolar region
-			{ 0.12064f, -2.57705f }, // d = width of the circumsolar region
-			{ -0.06696f, 0.37027f } }; // e = relative backscattered light
-
-	/** Distribution coefficients for the x distribution function */
-	private float distributionXcomp[][] = { { -0.01925f, -0.25922f },
-			{ -0.06651f, 0.00081f }, { -0.00041f, 0.21247f },
-			{ -0.06409f, -0.89887f }, { -0.00325f, 0.04517f } };
-
-	/** Distribution coefficients for the y distribution function */
-	private float distributionYcomp[][] = { { -0.01669f, -0.26078f },
-			{ -0.09495f, 0.00921f }, { -0.00792f, 0.21023f },
-			{ -0.04405f, -1.65369f }, { -0.01092f, 0.05291f } };
-
-	/** Zenith x value */
-	private float zenithXmatrix[][] = {
-			{ 0.00165f, -0.00375f, 0.00209f, 0.00000f },
-			{ -0.02903f, 0.06377f, -0.03202f, 0.00394f },
-			{ 0.11693f, -0.21196f, 0.06052f, 0.25886f } };
-	/** Zenith y value */
-	private float zenithYmatrix[][] = {
-			{ 0.00275f, -0.00610f, 0.00317f, 0.00000f },
-			{ -0.04214f, 0.08970f, -0.04153f, 0.00516f },
-			{ 0.15346f, -0.26756f, 0.06670f, 0.26688f } };
+	/** Vertex normals of each dome batch, one array per component */
+	private float[][] normalX;
+	private float[][] normalY;
+	private float[][] normalZ;
+	/** Solid angle around each vertex of each batch, in steradians */
+	private float[][] solidAngles;
+	/** Sky irradiance, projected from the dome colors */
+	private CSkyIrradiance irradiance = new CSkyIrradiance();
+	/** Ambient color set on the world light state */
+	private ColorRGBA ambientColor = new ColorRGBA(0, 0, 0, 1);
+	/** Sky colors of a sun at the vertices of a batch */
+	private float[] shade = new float[0];
+	// dirty tracking of the sky colors
+	private float recolorThreshold = DEFAULT_RECOLOR_THRESHOLD;
+	private float cosRecolorThreshold = FastMath.cos(recolorThreshold);
+	private boolean skyDirty = true;
+	private int shadedRevision;
+	private ColorRGBA shadedSkyColor = new ColorRGBA();
+	/** Whether the current colors were shaded with the radiance table */
+	private boolean shadedWithTable;
+	// time sliced recolor
+	private long recolorBudget;
+	private boolean recolorRunning;
+	private int recolorBatch;
+	private int recolorVertex;
+	/** Radiance table the colors being shaded are read from, or null */
+	private CSkyRadianceTable recolorTable;
+	/** Colors being shaded, swapped with the dome ones when complete */
+	private FloatBuffer[] backColors;
+	/** Vertices of each batch whose color changed since the last upload */
+	private CDirtyRanges[] dirtyRanges;
+	// background recolor
+	private CSkyBackgroundSolver solver;
+	/** Color buffers of the solved frame on the dome, or null if none is */
+	private FloatBuffer[] solvedColors;
+	private long solvedSequence;
+	/**
+	 * Copy of the shading parameters shared by the snapshots of the sky,
+	 * never modified
+	 */
+	private CSkyModel snapshotModel;
+	private int snapshotRevision;
+	/** Sun positions of the last snapshot, never modified */
+	private float[] snapshotLatitude;
+	private float[] snapshotLongitude;
+	/** Sky colors in any direction, for other threads */
+	private volatile CSkyRadianceCache radianceCache = new CSkyRadianceCache();
+	// keyframed recolor
+	private int keyframes;
+	private long keyframeMaxBytes;
+
 	private DisplaySystem display = DisplaySystem.getDisplaySystem();
 	/** The radius of the sky dome. */
 	private float radius = 400000;
@@ -327,6 +225,13 @@ public class CSkyDome {
 
 	private ArrayList<Moon> moons;
 
+	/** Time and site terms shared by the observers of all suns and moons */
+	private CAstroContext astroContext = new CAstroContext();
+	/** Simulated time read by the sky, or null */
+	private CSimulationClock clock;
+	/** Clock time at last update */
+	private long lastClockTime;
+
 	private Vector3f sceneOffset;
 	private LightState skyLightState;
 
@@ -337,6 +242,10 @@ public class CSkyDome {
 
 	/** the sky hemisphere */
 	private Dome dome;
+	/** Number of dome planes, horizon to zenith */
+	private int planes;
+	/** Number of dome vertices around each plane */
+	private int radialSamples;
 
 	/** the sky hemisphere node */
 	private Node domeNode = new Node("Dome Node");
@@ -352,9 +261,7 @@ public class CSkyDome {
 	/** Root node the sky node is attached to, or null */
 	private Node rootNode;
 	/** Color of the haze */
-	private ColorRGBA hazeColor;
-	/** Used to prevent unusefull repeated updates */
-	private boolean wasNightTime;
+	private ColorRGBA hazeColor = new ColorRGBA(0, 0, 0, 1);
 
 	public CSkyDome(String name, Vector3f sceneOffset) {
 		this(name, sceneOffset, null);
@@ -375,6 +282,27 @@ public class CSkyDome {
 	 */
 	public CSkyDome(String name, Vector3f sceneOffset,
 			LongShadowedRenderPass shadows) {
+		this(name, sceneOffset, shadows, DEFAULT_PLANES,
+				DEFAULT_RADIAL_SAMPLES);
+	}
+
+	/**
+	 * Constructor. Creates a new instance of CSkyDome with the given
+	 * tessellation. Domes with many vertices are colored on several cores.
+	 * 
+	 * @param name -
+	 *            Name of the node geometry
+	 * @param sceneOffset -
+	 *            Vector where to set the dome to
+	 * @param shadows -
+	 *            World shadow pass to update with sky lightings if any
+	 * @param planes -
+	 *            Number of dome planes, horizon to zenith
+	 * @param radialSamples -
+	 *            Number of dome vertices around each plane
+	 */
+	public CSkyDome(String name, Vector3f sceneOffset,
+			LongShadowedRenderPass shadows, int planes, int radialSamples) {
 
 		// Initialize stuff
 		suns = new ArrayList<Sun>();
@@ -382,14 +310,20 @@ public class CSkyDome {
 		this.sceneOffset = sceneOffset;
 		this.shadows = shadows;
 		this.skyColor = ColorRGBA.black;
+		this.planes = planes;
+		this.radialSamples = radialSamples;
 
 		// Create sky dome
-		dome = new Dome(name, new Vector3f(0, -radius * 0.0125f, 0),
-				RAD_SAMPLES, 20, radius, true);
+		dome = new Dome(name, new Vector3f(0, -radius * 0.0125f, 0), planes,
+				radialSamples, radius, true);
 		dome.setIsCollidable(false);
 		dome.setSolidColor(skyColor);
 		dome.setCullMode(SceneElement.CULL_NEVER);
 		domeNode.attachChild(dome);
+		dirtyRanges = new CDirtyRanges[dome.getBatchCount()];
+		for (int i = 0; i < dirtyRanges.length; i++)
+			dirtyRanges[i] = new CDirtyRanges(dome.getBatch(i)
+					.getVertexCount());
 
 		// Create a light state
 		skyLightState = display.getRenderer().createLightState();
@@ -412,6 +346,16 @@ public class CSkyDome {
 
 	}
 
+	/**
+	 * Adds a moon to the sky. Kept for binary compatibility, see
+	 * {@link #addMoon(CCelestialObserver, float, String, String)}
+	 */
+	public Light addMoon(CMoonObserver moonObs, float moonSizeMult,
+			String moonTexFilename, String flareTexFilename) {
+		return addMoon((CCelestialObserver) moonObs, moonSizeMult,
+				moonTexFilename, flareTexFilename);
+	}
+
 	/**
 	 * Adds a moon to the sky.
 	 * 
@@ -427,12 +371,15 @@ public class CSkyDome {
 	 *            flare.
 	 * @return light to attach to world light state
 	 */
-	public Light addMoon(CMoonObserver moonObs, float moonSizeMult,
+	public Light addMoon(CCelestialObserver moonObs, float moonSizeMult,
 			String moonTexFilename, String flareTexFilename) {
 		// Create Moon
 		Moon theMoon = new Moon();
 		moons.add(theMoon);
-		theMoon.moonObserver = moonObs;
+		theMoon.observer = moonObs;
+		if (moonObs instanceof CMoonObserver)
+			theMoon.moonObserver = (CMoonObserver) moonObs;
+		moonObs.setAstroContext(astroContext);
 
 		try {
 			// Create the moonlight which is a DirectionalLight.
@@ -471,14 +418,14 @@ public class CSkyDome {
 					theMoon.light);
 			theMoon.moonNode.attachChild(moonLightNode);
 			theMoon.moonNode.attachChild(moonSphere);
-			Vector3f absMoonPos = sceneOffset.add(theMoon.moonObserver
+			Vector3f absMoonPos = sceneOffset.add(theMoon.observer
 					.getPosition());
 			theMoon.moonNode.setLocalTranslation(absMoonPos);
 	
 			// Create lens flare effect
 			if (flareTexFilename != null) {
 				buildMoonLensFlare(theMoon, flareTexFilename, moonSizeMult);
-				updateMoonLensFlare(theMoon.moonFlareEffect, theMoon.moonObserver
+				updateMoonLensFlare(theMoon.moonFlareEffect, theMoon.observer
 						.getLatitude(), 0);
 			}
 	
@@ -494,6 +441,16 @@ public class CSkyDome {
 		return theMoon.light;
 	}
 
+	/**
+	 * Adds a sun to the sky. Kept for binary compatibility, see
+	 * {@link #addSun(CCelestialObserver, float, String[], Node)}
+	 */
+	public Light addSun(CSunObserver sunObs, float sunSizeMult,
+			String[] flareTexFilenames, Node pickNode) {
+		return addSun((CCelestialObserver) sunObs, sunSizeMult,
+				flareTexFilenames, pickNode);
+	}
+
 	/**
 	 * Adds a sun to the sky.
 	 * 
@@ -510,13 +467,29 @@ public class CSkyDome {
 	 *            effect
 	 * @return light to attach to world light state
 	 */
-	public Light addSun(CSunObserver sunObs, float sunSizeMult,
+	public Light addSun(CCelestialObserver sunObs, float sunSizeMult,
 			String[] flareTexFilenames, Node pickNode) {
 		try {
 			// Create sun
 			Sun theSun = new Sun();
 			suns.add(theSun);
-			theSun.sunObserver = sunObs;
+			skyDirty = true;
+			theSun.observer = sunObs;
+			if (sunObs instanceof CSunObserver)
+				theSun.sunObserver = (CSunObserver) sunObs;
+			sunObs.setAstroContext(astroContext);
+			theSun.eventSolver = new CSkyEventSolver(sunObs, sunObs
+					.getSiteLatitude(), sunObs.getSiteLongitude());
+			final Sun listenedSun = theSun;
+			theSun.eventSolver.addListener(new CSkyEventListener() {
+				public void skyEvent(CSkyEventSolver solver, int event, long time) {
+					// Night falls when the sun is 18 degrees below the horizon
+					if (event == CSkyEventSolver.ASTRONOMICAL_DUSK)
+						setSunDayNightBehaviour(listenedSun, true);
+					else if (event == CSkyEventSolver.ASTRONOMICAL_DAWN)
+						setSunDayNightBehaviour(listenedSun, false);
+				}
+			});
 			theSun.sizeMult = sunSizeMult;
 			theSun.pickNode = pickNode;
 		
@@ -528,7 +501,7 @@ public class CSkyDome {
 			theSun.light.setShadowCaster(true);
 			// Create the sun which is a LightNode.
 			theSun.sunNode = new SimpleLightNode("Sun", theSun.light);
-			Vector3f absSunPos = sceneOffset.add(theSun.sunObserver.getPosition());
+			Vector3f absSunPos = sceneOffset.add(theSun.observer.getPosition());
 			theSun.sunNode.setLocalTranslation(absSunPos);
 			// Create lens flare effect
 
@@ -618,18 +591,6 @@ public class CSkyDome {
 		lensFlaresNode.attachChild(sun.sunFlareEffect);
 	}
 
-	/**
-	 * clamp the value between min and max values
-	 */
-	private float clamp(float value, float min, float max) {
-		if (value < min)
-			return min;
-		else if (value > max)
-			return max;
-		else
-			return value;
-	}
-
 	/**
 	 * Create a stars layer given a seamless texture of the stars. The texture
 	 * is tiled many times and blended with alpha to create stars
@@ -687,14 +648,14 @@ public class CSkyDome {
 	 * @return Exposure factor
 	 */
 	public float getExposure() {
-		return exposure;
+		return skyModel.getExposure();
 	}
 
 	/**
 	 * @return gamma correction factor
 	 */
 	public float getGammaCorrection() {
-		return gammaCorrection;
+		return skyModel.getGammaCorrection();
 	}
 
 	/**
@@ -704,6 +665,42 @@ public class CSkyDome {
 		return hazeColor;
 	}
 
+	/**
+	 * Bakes the sky as of the last time it was recolored, with its suns,
+	 * moons and stars, into environment maps. The baker only bakes again the
+	 * parts of the maps that changed when the suns alone moved since its last
+	 * bake.
+	 * 
+	 * @param baker -
+	 *            baker holding the environment maps
+	 */
+	public void bakeEnvironment(CSkyEnvironmentBaker baker) {
+		if (snapshotModel == null)
+			throw new IllegalStateException("Sky not colored yet");
+		baker.setSky(snapshotModel, snapshotLatitude, snapshotLongitude,
+				shadedSkyColor);
+		Vector3f[] moonDirections = new Vector3f[moons.size()];
+		for (int i = 0; i < moons.size(); i++)
+			moonDirections[i] = moons.get(i).observer.getPosition();
+		baker.setMoons(moonDirections);
+		float latitude = 0;
+		for (int i = 0; i < snapshotLatitude.length; i++)
+			latitude += snapshotLatitude[i];
+		if (snapshotLatitude.length > 0)
+			latitude /= snapshotLatitude.length;
+		// Same opacity as the star dome
+		baker.setStarVisibility(0.4f - FastMath.sin(latitude));
+		baker.bake();
+	}
+
+	/**
+	 * @return irradiance of the sky, for ambient and hemisphere lighting,
+	 *         updated whenever the dome is recolored
+	 */
+	public CSkyIrradiance getIrradiance() {
+		return irradiance;
+	}
+
 	/**
 	 * @param index -
 	 *            insertion index
@@ -713,21 +710,54 @@ public class CSkyDome {
 		return moons.get(index);
 	}
 
+	/**
+	 * @return Number of keyframes cached per sun, or 0
+	 */
+	public int getKeyframes() {
+		return keyframes;
+	}
+
+	/**
+	 * @return Number of dome planes, horizon to zenith
+	 */
+	public int getPlanes() {
+		return planes;
+	}
+
 	/**
 	 * @return Over Cast factor
 	 */
 	public float getOvercastFactor() {
-		return overcast;
+		return skyModel.getOvercastFactor();
+	}
+
+	/**
+	 * @return Number of dome vertices around each plane
+	 */
+	public int getRadialSamples() {
+		return radialSamples;
+	}
+
+	/**
+	 * @return CPU time allowed to recolor the sky each frame, in
+	 *         microseconds, or 0
+	 */
+	public long getRecolorBudget() {
+		return recolorBudget;
+	}
+
+	/**
+	 * @return Sun motion, in radians, above which the sky is recolored
+	 */
+	public float getRecolorThreshold() {
+		return recolorThreshold;
 	}
 
-	private float[] getPerez(float[][] distribution, float turbidity) {
-		float[] perez = new float[5];
-		perez[0] = distribution[0][0] * turbidity + distribution[0][1];
-		perez[1] = distribution[1][0] * turbidity + distribution[1][1];
-		perez[2] = distribution[2][0] * turbidity + distribution[2][1];
-		perez[3] = distribution[3][0] * turbidity + distribution[3][1];
-		perez[4] = distribution[4][0] * turbidity + distribution[4][1];
-		return perez;
+	/**
+	 * @return baked sky colors used to shade the dome, or null
+	 */
+	public CSkyRadianceTable getRadianceTable() {
+		return radianceTable;
 	}
 
 	/**
@@ -760,6 +790,25 @@ public class CSkyDome {
 		return skyLightState;
 	}
 
+	/**
+	 * Computes the sky color in a direction, as of the last time the sky was
+	 * recolored. Can be called from any thread; directions are quantized to
+	 * the cells of the radiance cache and below the horizon get the horizon
+	 * color.
+	 * 
+	 * @param direction -
+	 *            direction from the viewer, not necessarily normalized
+	 * @param store -
+	 *            color to store the result in, or null for a new one
+	 * @return the sky color
+	 */
+	public ColorRGBA getSkyRadiance(Vector3f direction, ColorRGBA store) {
+		if (store == null)
+			store = new ColorRGBA();
+		return radianceCache.getRadiance(direction.x, direction.y,
+				direction.z, store);
+	}
+
 	/**
 	 * @return sky color
 	 */
@@ -767,6 +816,20 @@ public class CSkyDome {
 		return skyColor;
 	}
 
+	/**
+	 * @return sky model shading the dome
+	 */
+	public CSkyModel getSkyModel() {
+		return skyModel;
+	}
+
+	/**
+	 * @return simulated time read by the sky, or null
+	 */
+	public CSimulationClock getSimulationClock() {
+		return clock;
+	}
+
 	/**
 	 * @param index -
 	 *            insertion index
@@ -780,56 +843,65 @@ public class CSkyDome {
 	 * @return get Turbidity factor
 	 */
 	public float getTurbidity() {
-		return turbidity;
+		return skyModel.getTurbidity();
 	}
 
-	private float getZenith(float[][] zenithMatrix, float theta, float turbidity) {
-		float theta2 = theta * theta;
-		float theta3 = theta * theta2;
-
-		return (zenithMatrix[0][0] * theta3 + zenithMatrix[0][1] * theta2
-				+ zenithMatrix[0][2] * theta + zenithMatrix[0][3])
-				* turbidity
-				* turbidity
-				+ (zenithMatrix[1][0] * theta3 + zenithMatrix[1][1] * theta2
-						+ zenithMatrix[1][2] * theta + zenithMatrix[1][3])
-				* turbidity
-				+ (zenithMatrix[2][0] * theta3 + zenithMatrix[2][1] * theta2
-						+ zenithMatrix[2][2] * theta + zenithMatrix[2][3]);
+	/**
+	 * @return true if the sky colors are shaded by a background thread
+	 */
+	public boolean isAsyncRecolor() {
+		return solver != null;
 	}
 
 	/**
 	 * @return is linear exposure control enabled
 	 */
 	public boolean isLinearExposureControl() {
-		return isLinearExpControl;
+		return skyModel.isLinearExposureControl();
 	}
 
 	/**
-	 * @param lat -
-	 *            a sun's latitude
-	 * @return true if this sun is fallen or not risen yet
+	 * Set whether the sky colors are shaded by a background thread. The
+	 * thread shades a snapshot of the suns and shading parameters in spare
+	 * color buffers, which the update swaps in when ready, a few frames after
+	 * the sky changed. The update never waits for the thread. Takes
+	 * precedence over the recolor budget. Should the thread fail a job, the
+	 * update stops it and recolors on its own thread again.
+	 * 
+	 * @param async -
+	 *            true to start the thread, false to stop it and recolor on
+	 *            the update thread again
 	 */
-	private boolean isNightTime(float lat) {
-		return (lat > -0.9 * FastMath.PI && lat < -0.1 * FastMath.PI);
+	public void setAsyncRecolor(boolean async) {
+		if (async == (solver != null))
+			return;
+		if (async) {
+			solver = new CSkyBackgroundSolver();
+			solver.start();
+		} else {
+			solver.shutdown();
+			solver = null;
+		}
+		solvedColors = null;
+		recolorRunning = false;
+		skyDirty = true;
 	}
 
-	private float perezFunctionO1(float[] perezCoeffs, float thetaSun,
-			float zenithValue) {
-		float val = (1.0f + perezCoeffs[0] * FastMath.exp(perezCoeffs[1]))
-				* (1.0f + perezCoeffs[2]
-						* FastMath.exp(perezCoeffs[3] * thetaSun) + perezCoeffs[4]
-						* FastMath.sqr(FastMath.cos(thetaSun)));
-		return zenithValue / val;
+	/** Call this in the scene cleanup method. */
+	public void cleanup() {
+		setAsyncRecolor(false);
 	}
 
-	private float perezFunctionO2(float[] perezCoeffs, float cosTheta,
-			float gamma, float cosGamma2, float zenithValue) {
-		return zenithValue
-				* (1.0f + perezCoeffs[0]
-						* FastMath.exp(perezCoeffs[1] * cosTheta))
-				* (1.0f + perezCoeffs[2] * FastMath.exp(perezCoeffs[3] * gamma) + perezCoeffs[4]
-						* cosGamma2);
+	/**
+	 * @param index -
+	 *            index of a dome batch
+	 * @return vertices of that batch whose color changed since the ranges
+	 *         were cleared, which the renderer does once it uploaded them.
+	 *         Vertices whose color is recomputed to the same value are not
+	 *         flagged.
+	 */
+	public CDirtyRanges getDirtyRanges(int index) {
+		return dirtyRanges[index];
 	}
 
 	/**
@@ -856,22 +928,140 @@ public class CSkyDome {
 	 * Set Exposure factor
 	 */
 	public void setExposure(boolean isLinearExpControl, float exposure) {
-		this.isLinearExpControl = isLinearExpControl;
-		this.exposure = 1.0f / clamp(exposure, 1.0f, INFINITY);
+		skyModel.setExposure(isLinearExpControl, exposure);
 	}
 
 	/**
 	 * Set gamma correction factor
 	 */
 	public void setGammaCorrection(float gamma) {
-		this.gammaCorrection = 1.0f / clamp(gamma, EPSILON, INFINITY);
+		skyModel.setGammaCorrection(gamma);
+	}
+
+	/**
+	 * Set the resolution of the sky colors returned by
+	 * {@link #getSkyRadiance(Vector3f, ColorRGBA)}
+	 * 
+	 * @param resolution -
+	 *            Number of cells along the edge of each face of the cube map
+	 *            caching the colors, or 0 to compute each direction exactly
+	 */
+	public void setRadianceResolution(int resolution) {
+		radianceCache = new CSkyRadianceCache(resolution);
+		skyDirty = true;
+	}
+
+	/**
+	 * Set the keyframed day cycle of the sky colors. The colors of each sun
+	 * are precomputed along its path over a day, then the dome is colored by
+	 * blending the two keyframes around the current time. The keyframes are
+	 * computed again when a shading parameter or the site changes and after
+	 * a simulated day, so that they are best suited to steady skies. Applies
+	 * when the colors are not shaded by a background thread.
+	 * 
+	 * @param keyframes -
+	 *            Number of keyframes per day, at least 2, or 0 to shade the
+	 *            sky at each recolor
+	 * @param maxBytes -
+	 *            Memory ceiling of the keyframes of each sun, in bytes;
+	 *            fewer keyframes are kept if needed
+	 */
+	public void setKeyframeCache(int keyframes, long maxBytes) {
+		if (keyframes == 1 || keyframes < 0)
+			throw new IllegalArgumentException("Too few keyframes");
+		this.keyframes = keyframes;
+		this.keyframeMaxBytes = maxBytes;
+		for (int i = 0; i < suns.size(); i++)
+			suns.get(i).keyframeCache = null;
+		recolorRunning = false;
+		skyDirty = true;
 	}
 
 	/**
 	 * Set Over Cast factor
 	 */
 	public void setOvercastFactor(float overcast) {
-		this.overcast = clamp(overcast, 0.0f, 1.0f);
+		skyModel.setOvercastFactor(overcast);
+	}
+
+	/**
+	 * Set the baked sky colors used to shade the dome from a file saved by
+	 * {@link #saveRadianceTable(File)}, along with the shading parameters
+	 * they were baked with. Domes loading the same file share the colors.
+	 * 
+	 * @param file -
+	 *            table file
+	 * @throws IOException
+	 *             if the file cannot be read, or is not a valid table file
+	 */
+	public void loadRadianceTable(File file) throws IOException {
+		setRadianceTable(CSkyRadianceTable.load(file, skyModel));
+	}
+
+	/**
+	 * Saves the baked sky colors of the current shading parameters, so that
+	 * they can be loaded instead of baked again
+	 * 
+	 * @param file -
+	 *            table file
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public void saveRadianceTable(File file) throws IOException {
+		if (radianceTable != null)
+			radianceTable.save(file);
+		else
+			new CSkyRadianceTable(skyModel).save(file);
+	}
+
+	/**
+	 * Set the baked sky colors used to shade the dome. There is none by
+	 * default, the model being evaluated at each vertex. The table is baked
+	 * in the background when the shading parameters change, the dome being
+	 * shaded from the model until the bake completes.
+	 * 
+	 * @param radianceTable -
+	 *            a table baking the sky model of this dome, or null to
+	 *            evaluate the model at each vertex
+	 */
+	public void setRadianceTable(CSkyRadianceTable radianceTable) {
+		if (radianceTable != null && radianceTable.getModel() != skyModel)
+			throw new IllegalArgumentException(
+					"Table does not bake this dome model");
+		this.radianceTable = radianceTable;
+		skyDirty = true;
+	}
+
+	/**
+	 * Set the CPU time allowed to recolor the sky each frame. With a budget,
+	 * the dome colors are shaded over several frames in a back buffer, which
+	 * is swapped in once complete; at least a few hundred vertices are shaded
+	 * each frame, whatever the budget. The radiance table is not baked within
+	 * the budget: a pass started while it bakes is shaded from the model.
+	 * 
+	 * @param recolorBudget -
+	 *            Time in microseconds, or 0 to recolor the whole dome in the
+	 *            frame the sky changed
+	 */
+	public void setRecolorBudget(long recolorBudget) {
+		this.recolorBudget = recolorBudget;
+		if (recolorRunning) {
+			recolorRunning = false;
+			skyDirty = true;
+		}
+	}
+
+	/**
+	 * Set the sun motion above which the sky is recolored. The sky is also
+	 * recolored whenever a shading parameter or the sky color changes, or a
+	 * sun crosses the night threshold.
+	 * 
+	 * @param recolorThreshold -
+	 *            Angle in radians, or 0 to recolor whenever a sun moves
+	 */
+	public void setRecolorThreshold(float recolorThreshold) {
+		this.recolorThreshold = recolorThreshold;
+		this.cosRecolorThreshold = FastMath.cos(recolorThreshold);
 	}
 
 	/**
@@ -890,6 +1080,23 @@ public class CSkyDome {
 		ambient = (LightState) rootNode.getRenderState(RenderState.RS_LIGHT);
 		if (ambient == null)
 			ambient = display.getRenderer().createLightState();
+		// Apply lightings to the new root at next update
+		for (int i = 0; i < suns.size(); i++)
+			suns.get(i).dayNightPending = true;
+	}
+
+	/**
+	 * Set the simulated time read by {@link #update(Vector3f, float)}. All
+	 * suns and moons are moved to the clock time at each update; the clock is
+	 * not advanced by the sky.
+	 * 
+	 * @param clock -
+	 *            the simulation clock
+	 */
+	public void setSimulationClock(CSimulationClock clock) {
+		this.clock = clock;
+		if (clock != null)
+			lastClockTime = clock.getTime();
 	}
 
 	/**
@@ -909,33 +1116,31 @@ public class CSkyDome {
 	 * 
 	 * @param theSun -
 	 *            a sun to set
+	 * @param night -
+	 *            true if the sun has fallen or not risen yet
 	 */
-	private void setSunDayNightBehaviour(Sun theSun) {
+	private void setSunDayNightBehaviour(Sun theSun, boolean night) {
+		theSun.night = night;
+		theSun.dayNightPending = false;
 		// Disable shadows at night
-		if (isNightTime((float) theSun.sunObserver.getLatitude())
-				&& wasNightTime) {
-			wasNightTime = false;
-			theSun.light.setShadowCaster(false);
-			if (rootNode != null && ambient != null) {
+		theSun.light.setShadowCaster(!night);
+		if (rootNode != null && ambient != null) {
+			if (night) {
 				ambient.detach(theSun.light);
 				rootNode.updateRenderState();
-			}
-		} else if (!isNightTime((float) theSun.sunObserver.getLatitude())
-				&& !wasNightTime) {
-			wasNightTime = true;
-			theSun.light.setShadowCaster(true);
-			if (rootNode != null && ambient != null) {
+			} else {
 				rootNode.updateRenderState();
 				ambient.attach(theSun.light);
 			}
-		}
+		} else
+			theSun.dayNightPending = true;
 	}
 
 	/**
 	 * Set Turbidity factor
 	 */
 	public void setTurbidity(float turbidity) {
-		this.turbidity = clamp(turbidity, 1.0f, 512.0f);
+		skyModel.setTurbidity(turbidity);
 	}
 
 	/**
@@ -956,6 +1161,49 @@ public class CSkyDome {
 	 */
 	public void update(Vector3f viewerPos, float tpf, int elapsHH, int elapsMM,
 			int elapsSS) {
+		update(viewerPos, tpf, ((elapsHH * 60L + elapsMM) * 60L + elapsSS)
+				* 1000L, elapsHH * 1 + elapsMM * 0.166f, false);
+	}
+
+	/**
+	 * Updates sky, moving suns and moons to the time of the simulation clock.
+	 * The clock is only read: the caller advances it with
+	 * {@link CSimulationClock#advance(float)} once per frame, before updating
+	 * the sky and the atmosphere.
+	 * 
+	 * @param viewerPos -
+	 *            Vector representing the 3d position of the viewer
+	 * 
+	 * @param tpf -
+	 *            Time per frame from
+	 *            <code>BasicGameState</code> <code>Update()</code> method
+	 * @throws IllegalStateException
+	 *             if no simulation clock is set
+	 */
+	public void update(Vector3f viewerPos, float tpf) {
+		if (clock == null)
+			throw new IllegalStateException(
+					"No simulation clock set, see setSimulationClock");
+		long now = clock.getTime();
+		long elapsed = now - lastClockTime;
+		lastClockTime = now;
+		update(viewerPos, tpf, elapsed, elapsed / 3600000
+				+ (elapsed % 3600000) / 60000f * 0.166f, true);
+	}
+
+	/**
+	 * Updates sky
+	 * 
+	 * @param elapsed -
+	 *            Elapsed milliseconds
+	 * @param angleFactor -
+	 *            Stars rotation angle multiplier
+	 * @param useClock -
+	 *            true to move observers to the clock time, false to advance
+	 *            them by the elapsed time
+	 */
+	private void update(Vector3f viewerPos, float tpf, long elapsed,
+			float angleFactor, boolean useClock) {
 
 		// Set the sky dome's local translation to the camera's current
 		// position.
@@ -964,64 +1212,97 @@ public class CSkyDome {
 
 		// Update suns
 		double sunsLatitude = 0;
-		float sunsLightness = 0;
-		dome.setSolidColor(skyColor);
+		boolean recolor = skyDirty || isShadingChanged()
+				|| isRadianceTableBaked();
 		for (int i = 0; i < suns.size(); i++) {
 			Sun theSun = suns.get(i);
 
-			// See if it's night time for this sun
-			setSunDayNightBehaviour(theSun);
-
 			// Move sun
-			theSun.sunObserver.updateSunPosition(elapsHH, elapsMM, elapsSS);
-			Vector3f absPos = sceneOffset.add(theSun.sunObserver.getPosition());
+			theSun.observer.setCurrentTime(useClock ? clock.getTime()
+					: theSun.observer.getCurrentTime() + elapsed);
+
+			// Fire day/night transitions for this sun, or look at its position
+			// when the solver skipped some, as the first time or after the
+			// clock or the site jumped
+			if (theSun.eventSolver.setSite(theSun.observer.getSiteLatitude(),
+					theSun.observer.getSiteLongitude()))
+				theSun.dayNightPending = true;
+			if (theSun.eventSolver.update(theSun.observer.getCurrentTime()))
+				theSun.dayNightPending = true;
+			if (theSun.dayNightPending)
+				setSunDayNightBehaviour(theSun,
+						CSkyModel.isNightTime((float) theSun.observer
+								.getLatitude()));
+			Vector3f absPos = sceneOffset.add(theSun.observer.getPosition());
 			theSun.sunNode.setLocalTranslation(absPos);
 			theSun.light.setLocation(absPos);
 			theSun.sunNode.updateGeometricState(tpf, true);
 			// Update the sun light color and flares based on the current sun
 			// coords.
-			updateSunLightColor(theSun.light, (float) theSun.sunObserver
+			updateSunLightColor(theSun.light, (float) theSun.observer
 					.getLatitude());
 			updateSunLensFlare(theSun);
 			// Get sun shared params
-			sunsLatitude += theSun.sunObserver.getLatitude();
-			sunsLightness = theSun.sunFlareEffect.getIntensity();
-
-			// Finally, render the sky color contribute for this sun
-			updateSkyColor(theSun);
+			sunsLatitude += theSun.observer.getLatitude();
 
+			recolor |= hasSunMoved(theSun);
+		}
+		// Finally, render the sky color contribute of the suns, unless the
+		// previous colors are still good. A solver thread that failed a job,
+		// or was killed by an error, is replaced by the recolor on this
+		// thread.
+		if (solver != null
+				&& (!solver.isAlive() || solver.getFailedJobCount() > 0)) {
+			setAsyncRecolor(false);
+			recolor = true;
 		}
-		// Set ambient light depending on hour of the day.
-		if (ambient != null)
-			ambient.getGlobalAmbient().multLocal(sunsLightness / suns.size());
+		if (solver != null) {
+			if (recolor)
+				submitRecolor();
+			swapSolvedColors();
+		} else if (keyframes > 0) {
+			if (recolor)
+				updateKeyframeColor();
+		} else if (recolorBudget > 0) {
+			// Restart a pass whose parameters are obsolete, or start a new
+			// one once the previous is swapped in
+			if (recolor && (!recolorRunning || skyDirty || isShadingChanged()))
+				startRecolor();
+			if (recolorRunning)
+				continueRecolor();
+		} else if (recolor)
+			updateSkyColor();
+		// Set ambient light from the sky irradiance, updated in place
+		if (ambient != null && ambient.getGlobalAmbient() != ambientColor)
+			ambient.setGlobalAmbient(ambientColor);
 
 		// If set, update shadows color depending on mean sun latitude.
 		if (shadows != null)
 			shadows.setShadowColor(new ColorRGBA(0.75f, 0.75f, 0.75f, 0.75f)
 					.multLocal((float) (1.2f - Math.sin(sunsLatitude))));
 		// Update the star effect based on mean sun latitude.
-		this.updateStars(sunsLatitude / suns.size(), elapsHH * 1 + elapsMM
-				* 0.166f);
+		this.updateStars(sunsLatitude / suns.size(), angleFactor);
 
 		// Update moons
 		for (int i = 0; i < moons.size(); i++) {
 			Moon theMoon = moons.get(i);
 			// Move moon
-			theMoon.moonObserver.updateMoonPosition(elapsHH, elapsMM, elapsSS);
-			Vector3f absPos = sceneOffset.add(theMoon.moonObserver
+			theMoon.observer.setCurrentTime(useClock ? clock.getTime()
+					: theMoon.observer.getCurrentTime() + elapsed);
+			Vector3f absPos = sceneOffset.add(theMoon.observer
 					.getPosition());
-			theMoon.light.setLocation(theMoon.moonObserver.getPosition()
+			theMoon.light.setLocation(theMoon.observer.getPosition()
 					.subtract(sceneOffset));
 			theMoon.moonNode.setLocalTranslation(absPos);
 			theMoon.moonNode.updateGeometricState(tpf, true);
 
 			// Update the moon light color and flares based on the current moon
 			// coords.
-			updateMoonLightColor(theMoon.light, (float) theMoon.moonObserver
+			updateMoonLightColor(theMoon.light, (float) theMoon.observer
 					.getLatitude(), sunsLatitude);
 			if (theMoon.moonFlareEffect != null)
 				updateMoonLensFlare(theMoon.moonFlareEffect,
-						theMoon.moonObserver.getLatitude(), sunsLatitude);
+						theMoon.observer.getLatitude(), sunsLatitude);
 		}
 
 	}
@@ -1085,128 +1366,424 @@ public class CSkyDome {
 	}
 
 	/**
-	 * update Sky color
+	 * @return true if the sun moved past the recolor threshold or crossed the
+	 *         night threshold since the sky was last colored
+	 */
+	private boolean hasSunMoved(Sun theSun) {
+		Vector3f pos = theSun.observer.getPosition();
+		Vector3f last = theSun.shadedPosition;
+		if (CSkyModel.isNightTime((float) theSun.observer.getLatitude())
+				!= theSun.shadedNight)
+			return true;
+		if (pos.x == last.x && pos.y == last.y && pos.z == last.z)
+			return false;
+		float lengths = pos.length() * last.length();
+		return lengths == 0 || pos.dot(last) < cosRecolorThreshold * lengths;
+	}
+
+	/**
+	 * @return true if the shading parameters or the sky color changed since
+	 *         the current colors were started
 	 */
-	private void updateSkyColor(Sun sun) {
+	private boolean isShadingChanged() {
+		return shadedRevision != skyModel.getRevision()
+				|| shadedSkyColor.r != skyColor.r
+				|| shadedSkyColor.g != skyColor.g
+				|| shadedSkyColor.b != skyColor.b
+				|| shadedSkyColor.a != skyColor.a;
+	}
 
-		float lat = (float) sun.sunObserver.getLatitude();
-		float lon = (float) sun.sunObserver.getLongitude();
+	/**
+	 * @return true if the radiance table completed a bake since the current
+	 *         colors were shaded from the model
+	 */
+	private boolean isRadianceTableBaked() {
+		// The background solver bakes its own table
+		return solver == null && !shadedWithTable
+				&& bakedRadianceTable() != null;
+	}
 
-		// Get solar position
-		// While latitude and longitude are given with EAST as 0, theta has 0 at
-		// zenith and phi has 0 at WEST. Make the appropriate conversions
-		float thetaSun, phiSun;
-		if (lat >= 0)
-			thetaSun = FastMath.abs(FastMath.abs(lat) - FastMath.HALF_PI);
-		else
-			thetaSun = FastMath.PI
-					- FastMath.abs(FastMath.abs(lat) - FastMath.HALF_PI);
-		phiSun = -Math.abs(lon + FastMath.PI);
-
-		Vector3f sunDirection = new Vector3f();
-		sunDirection.x = FastMath.cos(FastMath.HALF_PI - thetaSun)
-				* FastMath.cos(phiSun);
-		sunDirection.y = FastMath.sin(FastMath.HALF_PI - thetaSun);
-		sunDirection.z = FastMath.cos(FastMath.HALF_PI - thetaSun)
-				* FastMath.sin(phiSun);
-		sunDirection.normalize();
-
-		// get zenith luminance
-		chi = ((4.0f / 9.0f) - (turbidity / 120.0f))
-				* (FastMath.PI - (2.0f * thetaSun));
-		zenithLuminance = ((4.0453f * turbidity) - 4.9710f) * FastMath.tan(chi)
-				- (0.2155f * turbidity) + 2.4192f;
-		if (zenithLuminance < 0.0f)
-			zenithLuminance = -zenithLuminance;
-
-		// get x / y zenith
-		zenithX = getZenith(zenithXmatrix, thetaSun, turbidity);
-		zenithY = getZenith(zenithYmatrix, thetaSun, turbidity);
-
-		// get perez function parameters
-		perezLuminance = getPerez(distributionLuminance, turbidity);
-		perezX = getPerez(distributionXcomp, turbidity);
-		perezY = getPerez(distributionYcomp, turbidity);
-
-		// make some precalculation
-		zenithX = perezFunctionO1(perezX, thetaSun, zenithX);
-		zenithY = perezFunctionO1(perezY, thetaSun, zenithY);
-		zenithLuminance = perezFunctionO1(perezLuminance, thetaSun,
-				zenithLuminance);
+	/**
+	 * Remembers the sun position the sky is colored with
+	 */
+	private void snapshotSun(Sun sun) {
+		sun.shadedPosition.set(sun.observer.getPosition());
+		sun.shadedLatitude = (float) sun.observer.getLatitude();
+		sun.shadedLongitude = (float) sun.observer.getLongitude();
+		sun.shadedNight = CSkyModel.isNightTime(sun.shadedLatitude);
+	}
 
-		// trough all vertices
+	/**
+	 * Sets the remembered sun positions on the sky models of the suns
+	 */
+	private void setSunModels() {
+		int revision = skyModel.getRevision();
+		if (sunModels.length != suns.size()) {
+			CSkyModel[] models = new CSkyModel[suns.size()];
+			for (int i = 0; i < models.length; i++) {
+				if (i == 0)
+					models[i] = skyModel;
+				else if (i < sunModels.length
+						&& sunModelsRevision == revision)
+					models[i] = sunModels[i];
+				else {
+					models[i] = new CSkyModel();
+					models[i].set(skyModel);
+				}
+			}
+			sunModels = models;
+		} else if (sunModelsRevision != revision) {
+			for (int i = 1; i < sunModels.length; i++)
+				sunModels[i].set(skyModel);
+		}
+		sunModelsRevision = revision;
+		for (int i = 0; i < sunModels.length; i++)
+			sunModels[i].setSun(suns.get(i).shadedLatitude,
+					suns.get(i).shadedLongitude);
+		if (normalX == null || normalX.length != dome.getBatchCount())
+			readNormals();
+	}
+
+	/**
+	 * Starts baking the radiance table in the background if the shading
+	 * parameters changed since its last bake
+	 * 
+	 * @return the radiance table if baked with the current shading
+	 *         parameters, null to evaluate the model meanwhile
+	 */
+	private CSkyRadianceTable bakedRadianceTable() {
+		if (radianceTable == null
+				|| !radianceTable.update(ForkJoinPool.commonPool()))
+			return null;
+		return radianceTable;
+	}
+
+	/**
+	 * Remembers the suns, shading parameters and sky color the sky is
+	 * colored with, and hands them to the radiance cache
+	 */
+	private void snapshotSky() {
+		snapshotLatitude = new float[suns.size()];
+		snapshotLongitude = new float[suns.size()];
+		for (int i = 0; i < suns.size(); i++) {
+			Sun sun = suns.get(i);
+			snapshotSun(sun);
+			snapshotLatitude[i] = sun.shadedLatitude;
+			snapshotLongitude[i] = sun.shadedLongitude;
+		}
+		shadedSkyColor.set(skyColor);
+		shadedRevision = skyModel.getRevision();
+		skyDirty = false;
+
+		// Snapshots share a parameters copy until a parameter changes
+		if (snapshotModel == null || snapshotRevision != shadedRevision) {
+			snapshotModel = new CSkyModel(skyModel);
+			snapshotRevision = shadedRevision;
+		}
+		radianceCache.setSky(snapshotModel, snapshotLatitude,
+				snapshotLongitude, shadedSkyColor);
+	}
+
+	/**
+	 * Starts shading the sky colors in the back buffers
+	 */
+	private void startRecolor() {
+		snapshotSky();
+
+		int batchCount = dome.getBatchCount();
+		if (backColors == null || backColors.length != batchCount)
+			backColors = new FloatBuffer[batchCount];
+		for (int i = 0; i < batchCount; i++) {
+			int count = dome.getBatch(i).getVertexCount();
+			if (backColors[i] == null || backColors[i].capacity() < count * 4)
+				backColors[i] = BufferUtils.createFloatBuffer(count * 4);
+		}
+		// A table still baking is not waited for, the pass is shaded from
+		// the model and the next one reads the table
+		recolorTable = bakedRadianceTable();
+		shadedWithTable = recolorTable != null;
+		recolorBatch = 0;
+		recolorVertex = 0;
+		recolorRunning = true;
+	}
+
+	/**
+	 * Shades the sky colors in the back buffers until the frame budget is
+	 * spent, then swaps them in if complete
+	 */
+	private void continueRecolor() {
+		long deadline = System.nanoTime() + recolorBudget * 1000;
+		boolean modelsSet = false;
+		do {
+			if (recolorBatch == dome.getBatchCount()) {
+				swapColors();
+				return;
+			}
+			if (!modelsSet) {
+				setSunModels();
+				modelsSet = true;
+			}
+			batch = dome.getBatch(recolorBatch);
+			int count = batch.getVertexCount();
+			int to = Math.min(recolorVertex + RECOLOR_CHUNK, count);
+			if (shade.length < count * 4)
+				shade = new float[count * 4];
+			CSkyColorSolver.compute(sunModels, suns.size(), shadedSkyColor,
+					recolorTable, normalX[recolorBatch], normalY[recolorBatch],
+					normalZ[recolorBatch], backColors[recolorBatch], null,
+					recolorVertex, to, shade, ForkJoinPool.commonPool());
+
+			// Next chunk or batch
+			recolorVertex = to;
+			if (recolorVertex == count) {
+				recolorVertex = 0;
+				recolorBatch++;
+			}
+		} while (System.nanoTime() < deadline);
+	}
+
+	/**
+	 * Swaps the shaded back buffers with the dome colors
+	 */
+	private void swapColors() {
+		recolorRunning = false;
 		for (int i = 0; i < dome.getBatchCount(); i++) {
 			batch = dome.getBatch(i);
+			FloatBuffer front = batch.getColorBuffer();
+			dirtyRanges[i].markChanged(front, backColors[i]);
+			batch.setColorBuffer(backColors[i]);
+			backColors[i] = front;
+		}
+		if (!suns.isEmpty())
+			updateHazeColor(suns.get(suns.size() - 1).shadedNight);
+		updateIrradiance();
+	}
 
-			normalBuf = batch.getNormalBuffer();
-			colorBuf = batch.getColorBuffer();
+	/**
+	 * Hands a snapshot of the suns and shading parameters to the background
+	 * solver
+	 */
+	private void submitRecolor() {
+		snapshotSky();
+		if (normalX == null || normalX.length != dome.getBatchCount())
+			readNormals();
+		solver.submit(new CSkyBackgroundSolver.Job(snapshotModel,
+				radianceTable, snapshotLatitude, snapshotLongitude,
+				shadedSkyColor, !suns.isEmpty()
+						&& suns.get(suns.size() - 1).shadedNight, normalX,
+				normalY, normalZ, solidAngles));
+	}
 
-			for (int j = 0; j < batch.getVertexCount(); j++) {
-				BufferUtils.populateFromBuffer(vertexColor, colorBuf, j);
-				BufferUtils.populateFromBuffer(vertex, normalBuf, j);
+	/**
+	 * Swaps the colors completed by the background solver, if any, with the
+	 * dome ones. The solver compares the colors and projects the irradiance,
+	 * leaving only the swap to this thread.
+	 */
+	private void swapSolvedColors() {
+		CSkyBackgroundSolver.Frame frame = solver.poll();
+		if (frame == null)
+			return;
+		// The changed ranges are only relative to the frame on the dome
+		boolean ranges = solvedColors != null && frame.getChangedSince() != 0
+				&& frame.getChangedSince() == solvedSequence;
+		if (solvedColors == null) {
+			solvedColors = new FloatBuffer[dome.getBatchCount()];
+			for (int i = 0; i < solvedColors.length; i++)
+				solvedColors[i] = dome.getBatch(i).getColorBuffer();
+		}
+		for (int i = 0; i < solvedColors.length; i++) {
+			dome.getBatch(i).setColorBuffer(frame.getColors(i));
+			if (!ranges) {
+				dirtyRanges[i].markAll();
+				continue;
+			}
+			int[] changed = frame.getChangedRanges(i);
+			for (int r = 0; r < changed.length; r += 2)
+				dirtyRanges[i].mark(changed[r], changed[r + 1]);
+		}
+		// The buffer arrays change hands with the buffers
+		solver.recycle(solvedColors);
+		solvedColors = frame.colors;
+		solvedSequence = frame.getSequence();
+		if (!suns.isEmpty())
+			updateHazeColor(frame.isNight());
+		irradiance.setCoefficients(frame.irradiance);
+		updateAmbientColor();
+	}
 
-				// angle between sun and vertex
-				gamma = FastMath.acos(vertex.dot(sunDirection));
+	/**
+	 * update Sky color, shading all suns in a single pass
+	 */
+	private void updateSkyColor() {
+		snapshotSky();
+		setSunModels();
+		CSkyRadianceTable table = bakedRadianceTable();
+		shadedWithTable = table != null;
 
-				cosTheta = 1.0f / vertex.y;
-				cosGamma2 = FastMath.sqr(FastMath.cos(gamma));
+		// trough all vertices
+		for (int i = 0; i < dome.getBatchCount(); i++) {
+			batch = dome.getBatch(i);
+
+			int count = batch.getVertexCount();
+			if (shade.length < count * 4)
+				shade = new float[count * 4];
+			colorBuf = batch.getColorBuffer();
+			CSkyColorSolver.compute(sunModels, suns.size(), shadedSkyColor,
+					table, normalX[i], normalY[i], normalZ[i], colorBuf,
+					dirtyRanges[i], 0, count, shade, ForkJoinPool.commonPool());
+		}
+		if (!suns.isEmpty())
+			updateHazeColor(suns.get(suns.size() - 1).shadedNight);
+		updateIrradiance();
+	}
+
+	/**
+	 * update Sky color, blending the keyframes of the suns
+	 */
+	private void updateKeyframeColor() {
+		snapshotSky();
+		if (normalX == null || normalX.length != dome.getBatchCount())
+			readNormals();
+		CSkyRadianceTable table = bakedRadianceTable();
+		shadedWithTable = table != null;
+		for (int i = 0; i < suns.size(); i++) {
+			Sun sun = suns.get(i);
+			if (sun.keyframeCache == null)
+				sun.keyframeCache = new CSkyKeyframeCache(skyModel, keyframes,
+						keyframeMaxBytes);
+			sun.keyframeCache.update(sun.observer, table, normalX,
+					normalY, normalZ);
+		}
 
-				// Compute x,y values
-				x_value = perezFunctionO2(perezX, cosTheta, gamma, cosGamma2,
-						zenithX);
-				y_value = perezFunctionO2(perezY, cosTheta, gamma, cosGamma2,
-						zenithY);
+		for (int i = 0; i < dome.getBatchCount(); i++) {
+			batch = dome.getBatch(i);
+			int count = batch.getVertexCount();
+			if (shade.length < count * 4)
+				shade = new float[count * 4];
+			if (suns.isEmpty()) {
+				for (int c = 0; c < count * 4; c++)
+					shade[c] = 0;
+			}
+			for (int j = 0; j < suns.size(); j++) {
+				Sun sun = suns.get(j);
+				sun.keyframeCache.blend(sun.observer.getCurrentTime(), i,
+						shade, j > 0);
+			}
+			CSkyColorSolver.write(shadedSkyColor, shade, batch
+					.getColorBuffer(), dirtyRanges[i], 0, count);
+		}
+		if (!suns.isEmpty())
+			updateHazeColor(suns.get(suns.size() - 1).shadedNight);
+		updateIrradiance();
+	}
 
-				// luminance(Y) for clear & overcast sky
-				yClear = perezFunctionO2(perezLuminance, cosTheta, gamma,
-						cosGamma2, zenithLuminance);
-				yOver = (1.0f + 2.0f * vertex.y) / 3.0f;
+	/**
+	 * Projects the dome colors on the irradiance harmonics and sets the
+	 * ambient color to the irradiance of an upward surface, over PI so that
+	 * a white diffuse surface reflects the mean sky color around its normal.
+	 * The ground is taken as black.
+	 */
+	private void updateIrradiance() {
+		if (normalX == null || normalX.length != dome.getBatchCount())
+			readNormals();
+		irradiance.begin();
+		for (int i = 0; i < dome.getBatchCount(); i++) {
+			batch = dome.getBatch(i);
+			irradiance.add(normalX[i], normalY[i], normalZ[i],
+					solidAngles[i], batch.getColorBuffer(), batch
+							.getVertexCount());
+		}
+		irradiance.end();
+		updateAmbientColor();
+	}
 
-				_Y = FastMath.LERP(overcast, yClear, yOver);
-				_X = (x_value / y_value) * _Y;
-				_Z = ((1.0f - x_value - y_value) / y_value) * _Y;
+	/**
+	 * Sets the ambient color to the sky irradiance of an upward surface, over
+	 * PI
+	 */
+	private void updateAmbientColor() {
+		irradiance.getIrradiance(0, 1, 0, ambientColor);
+		ambientColor.set(ambientColor.r / FastMath.PI, ambientColor.g
+				/ FastMath.PI, ambientColor.b / FastMath.PI, 1);
+	}
 
-				colorTemp = new ColorXYZ(_X, _Y, _Z);
-				if (isNightTime(lat)) {
-					// It's night time
-					colorTemp = new ColorXYZ(_X * 0.01f, _Y * 0.01f,
-							-_Z * 0.045f);
-				}
-				color = colorTemp.convertXYZtoRGB();
-				colorTemp = color.convertRGBtoHSV();
-
-				if (isLinearExpControl) { // linear scale
-					colorTemp.setValue(colorTemp.getValue() * exposure);
-				} else { // exp scale
-					colorTemp.setValue(1.0f - FastMath.exp(-exposure
-							* colorTemp.getValue()));
+	/**
+	 * Produce the mean color between a horizon vertex and its opposite
+	 * 
+	 * @param night -
+	 *            true if the sun lighting the haze has fallen or not risen yet
+	 */
+	private void updateHazeColor(boolean night) {
+		for (int i = 0; i < dome.getBatchCount(); i++) {
+			batch = dome.getBatch(i);
+			if (!night) {
+				colorBuf = batch.getColorBuffer();
+				BufferUtils.populateFromBuffer(hazeColor, colorBuf, 0);
+				if (batch.getVertexCount() > radialSamples / 2) {
+					BufferUtils.populateFromBuffer(vertexColor, colorBuf,
+							radialSamples / 2);
+					hazeColor.interpolate(vertexColor, 0.5f);
 				}
-				color = colorTemp.convertHSVtoRGB();
-
-				// gamma control
-				color.setGammaCorrection(gammaCorrection);
-
-				// clamp rgb between 0.0 - 1.0
-				color.clamp();
-				// Add to previously painted color
-				additionColor = color.getRGBA().addLocal(vertexColor);
-				BufferUtils.setInBuffer(additionColor, colorBuf, j);
-
-				// Produce the mean color between sun horizon position and its
-				// opposite
-				if (!isNightTime(lat)) {
-					if (j == 0)
-						hazeColor = additionColor;
-					else if (j == RAD_SAMPLES)
-						hazeColor.interpolate(additionColor, 0.5f);
-				} else
-					hazeColor = ColorRGBA.black;
-			}
+			} else
+				hazeColor.set(ColorRGBA.black);
 		}
 		// Check for invalid results
 		if (Float.isNaN(hazeColor.r) || Float.isNaN(hazeColor.g)
 				|| Float.isNaN(hazeColor.b) || Float.isNaN(hazeColor.a))
-			hazeColor = ColorRGBA.black;
+			hazeColor.set(ColorRGBA.black);
+	}
+
+	/**
+	 * Copies the dome normals, which never change, to component arrays, and
+	 * shares the solid angle of each dome triangle among its vertices
+	 */
+	private void readNormals() {
+		int batchCount = dome.getBatchCount();
+		normalX = new float[batchCount][];
+		normalY = new float[batchCount][];
+		normalZ = new float[batchCount][];
+		solidAngles = new float[batchCount][];
+		for (int i = 0; i < batchCount; i++) {
+			batch = dome.getBatch(i);
+			normalBuf = batch.getNormalBuffer();
+			int count = batch.getVertexCount();
+			normalX[i] = new float[count];
+			normalY[i] = new float[count];
+			normalZ[i] = new float[count];
+			for (int j = 0; j < count; j++) {
+				normalX[i][j] = normalBuf.get(j * 3);
+				normalY[i][j] = normalBuf.get(j * 3 + 1);
+				normalZ[i][j] = normalBuf.get(j * 3 + 2);
+			}
+
+			solidAngles[i] = new float[count];
+			IntBuffer indexBuf = batch.getIndexBuffer();
+			for (int t = 0; t < batch.getTriangleCount(); t++) {
+				int a = indexBuf.get(t * 3);
+				int b = indexBuf.get(t * 3 + 1);
+				int c = indexBuf.get(t * 3 + 2);
+				float third = solidAngle(normalX[i], normalY[i], normalZ[i],
+						a, b, c) / 3;
+				solidAngles[i][a] += third;
+				solidAngles[i][b] += third;
+				solidAngles[i][c] += third;
+			}
+		}
+	}
+
+	/**
+	 * @return solid angle of a triangle of unit vectors
+	 */
+	private static float solidAngle(float[] x, float[] y, float[] z, int a,
+			int b, int c) {
+		float tripleProduct = x[a] * (y[b] * z[c] - z[b] * y[c]) + y[a]
+				* (z[b] * x[c] - x[b] * z[c]) + z[a]
+				* (x[b] * y[c] - y[b] * x[c]);
+		float ab = x[a] * x[b] + y[a] * y[b] + z[a] * z[b];
+		float bc = x[b] * x[c] + y[b] * y[c] + z[b] * z[c];
+		float ca = x[c] * x[a] + y[c] * y[a] + z[c] * z[a];
+		return 2 * FastMath.abs(FastMath.atan2(tripleProduct, 1 + ab + bc
+				+ ca));
 	}
 
 	/**
@@ -1247,13 +1824,13 @@ public class CSkyDome {
 	private void updateSunLensFlare(Sun theSun) {
 		theSun.sunFlareEffect.setLocalTranslation(theSun.sunNode
 				.getLocalTranslation());
-		if (theSun.sunObserver.getLatitude() < 0) {
+		if (theSun.observer.getLatitude() < 0) {
 			theSun.sunFlareEffect.setTriangleAccurateOcclusion(false);
 			theSun.sunFlareEffect.setIntensity(0);
 		} else {
 			theSun.sunFlareEffect.setTriangleAccurateOcclusion(true);
 			theSun.sunFlareEffect.setIntensity((Math.max(FastMath.abs(FastMath
-					.sin((float) theSun.sunObserver.getLatitude()))
+					.sin((float) theSun.observer.getLatitude()))
 					* 0.4f * theSun.sizeMult, 0.25f)));
 		}
 
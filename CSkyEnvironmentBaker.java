@@ -0,0 +1,601 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.xutils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.jme.math.FastMath;
+import com.jme.math.Vector3f;
+import com.jme.renderer.ColorRGBA;
+
+/**
+ * Bakes the sky into environment maps on the CPU, for reflection probes on
+ * machines without a GPU. The sky is shaded with the sky model of a dome
+ * snapshot, then the sun discs, moon discs and stars are drawn over it.
+ * Images are cube map faces or a single equirectangular image, written in
+ * direct buffers as 8 bit RGBA or as RGBE, that is 8 bit mantissas with a
+ * shared exponent, which keeps the sun disc brighter than white.<br>
+ * The images are split in square tiles baked across the cores of a
+ * fork-join pool, each task baking a run of tiles with its own scratch
+ * arrays, so that nothing is allocated per tile or texel. When only the suns
+ * and moons moved since the last bake, a tile is baked again only if its
+ * corners or center changed by more than the tolerance, or if a sun or moon
+ * disc is over it before or after the move.
+ * The stars keep the opacity of the last full bake until it changes by more
+ * than the tolerance.<br>
+ * The stars are a fixed random field rather than the star dome texture,
+ * which cannot be read back without a renderer.<br>
+ * Cube map faces are in the +X, -X, +Y, -Y, +Z, -Z order, rows top to
+ * bottom, as OpenGL expects them. Equirectangular images are twice as wide
+ * as high, longitude 0 on the +X axis at the left edge, turning towards +Z;
+ * the zenith is the top row. Below the horizon the sky takes the horizon
+ * color.
+ */
+public class CSkyEnvironmentBaker {
+	public static final int CUBE_MAP = 0;
+	public static final int EQUIRECTANGULAR = 1;
+	public static final int RGBA8 = 0;
+	public static final int RGBE = 1;
+	/** Edge of the tiles, in texels */
+	public static final int TILE_SIZE = 32;
+	/** Default tolerance of the incremental bakes, one 8 bit step */
+	public static final float DEFAULT_TOLERANCE = 1.0f / 255.0f;
+	/** Points sampled along each tile edge to bound the tile */
+	private static final int EDGE_SAMPLES = 8;
+	/** Stars per texel of a 1024 texels cube face */
+	private static final float STAR_DENSITY = 0.002f;
+	/** Tasks the tiles are split in per core of the pool */
+	private static final int TASKS_PER_CORE = 4;
+
+	/** Tiles of an image range, split until a run of tiles is left */
+	private final class TileBake extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int from;
+		private final int to;
+		/** Largest number of tiles baked by a task */
+		private final int run;
+		private final boolean incremental;
+
+		TileBake(int from, int to, int run, boolean incremental) {
+			this.from = from;
+			this.to = to;
+			this.run = run;
+			this.incremental = incremental;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= run) {
+				TileScratch scratch = new TileScratch();
+				for (int tile = from; tile < to; tile++)
+					bakeTile(tile, incremental, scratch);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new TileBake(from, mid, run, incremental),
+					new TileBake(mid, to, run, incremental));
+		}
+	}
+
+	/** Arrays a task bakes its tiles with */
+	private static final class TileScratch {
+		final float[] direction = new float[3];
+		/** Sky color of a direction, before it is stored */
+		final float[] radiance = new float[4];
+		final ColorRGBA color = new ColorRGBA();
+		/** Colors of the corners and center of a tile */
+		final float[] probe = new float[15];
+	}
+
+	private final int layout;
+	private final int format;
+	private final int width;
+	private final int height;
+	private final ByteBuffer[] images;
+	private final int tilesX;
+	private final int tilesY;
+	/** Colors of the corners and center of each tile at the last bake */
+	private final float[] probes;
+	/** Cosine of the angle between each tile center and its farthest corner */
+	private final float[] tileCos;
+	private final float[] tileCenter;
+	private final int[] tilesBaked = new int[1];
+
+	// sky
+	private final CSkyRadianceCache sky = new CSkyRadianceCache(0);
+	private CSkyModel model;
+	private ColorRGBA base = new ColorRGBA(0, 0, 0, 1);
+	private float[] sunDirections = new float[0];
+	private float[] bakedSunDirections;
+	private float[] bakedMoonDirections;
+	private float bakedStarVisibility;
+	private boolean layersChanged = true;
+	// layers
+	private float sunRadius = 0.0087f;
+	private float sunIntensity = 16;
+	private float[] moonDirections = new float[0];
+	private float moonRadius = 0.0087f;
+	private ColorRGBA moonColor = new ColorRGBA(0.7f, 0.7f, 0.7f, 1);
+	private float starVisibility;
+	private float tolerance = DEFAULT_TOLERANCE;
+
+	/**
+	 * Constructor. The images are allocated at once.
+	 * 
+	 * @param layout -
+	 *            {@link #CUBE_MAP} or {@link #EQUIRECTANGULAR}
+	 * @param size -
+	 *            edge of the cube faces, or height of the equirectangular
+	 *            image, in texels
+	 * @param format -
+	 *            {@link #RGBA8} or {@link #RGBE}
+	 */
+	public CSkyEnvironmentBaker(int layout, int size, int format) {
+		if (layout != CUBE_MAP && layout != EQUIRECTANGULAR)
+			throw new IllegalArgumentException("Unknown layout " + layout);
+		if (format != RGBA8 && format != RGBE)
+			throw new IllegalArgumentException("Unknown format " + format);
+		if (size < 1)
+			throw new IllegalArgumentException("Empty image");
+		this.layout = layout;
+		this.format = format;
+		height = size;
+		width = layout == CUBE_MAP ? size : 2 * size;
+		images = new ByteBuffer[layout == CUBE_MAP ? 6 : 1];
+		for (int i = 0; i < images.length; i++)
+			images[i] = ByteBuffer.allocateDirect(width * height * 4);
+		tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+		tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+		int tiles = images.length * tilesX * tilesY;
+		probes = new float[tiles * 5 * 3];
+		tileCos = new float[tiles];
+		tileCenter = new float[tiles * 3];
+		measureTiles();
+	}
+
+	/**
+	 * @param image -
+	 *            index of a cube face, or 0
+	 * @return texels of that image, four bytes each
+	 */
+	public ByteBuffer getImage(int image) {
+		return images[image];
+	}
+
+	/**
+	 * @return number of images, 6 for a cube map and 1 otherwise
+	 */
+	public int getImageCount() {
+		return images.length;
+	}
+
+	/**
+	 * @return height of the images, in texels
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return width of the images, in texels
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return number of tiles baked by the last bake
+	 */
+	public int getTilesBaked() {
+		synchronized (tilesBaked) {
+			return tilesBaked[0];
+		}
+	}
+
+	/**
+	 * Set the sky to bake
+	 * 
+	 * @param model -
+	 *            shading parameters, not modified afterwards
+	 * @param sunLatitude -
+	 *            latitudes of the suns, not modified afterwards
+	 * @param sunLongitude -
+	 *            longitudes of the suns, not modified afterwards
+	 * @param base -
+	 *            color the sun colors are added to
+	 */
+	public void setSky(CSkyModel model, float[] sunLatitude,
+			float[] sunLongitude, ColorRGBA base) {
+		if (model != this.model)
+			layersChanged = true;
+		this.model = model;
+		this.base.set(base);
+		sky.setSky(model, sunLatitude, sunLongitude, base);
+		sunDirections = new float[sunLatitude.length * 3];
+		CSkyModel sun = new CSkyModel(model);
+		for (int i = 0; i < sunLatitude.length; i++) {
+			sun.setSun(sunLatitude[i], sunLongitude[i]);
+			sunDirections[i * 3] = sun.sunX;
+			sunDirections[i * 3 + 1] = sun.sunY;
+			sunDirections[i * 3 + 2] = sun.sunZ;
+		}
+	}
+
+	/**
+	 * Set the moons to draw
+	 * 
+	 * @param directions -
+	 *            directions of the moons from the viewer, not necessarily
+	 *            normalized
+	 */
+	public void setMoons(Vector3f[] directions) {
+		moonDirections = new float[directions.length * 3];
+		for (int i = 0; i < directions.length; i++) {
+			Vector3f direction = directions[i].normalize();
+			moonDirections[i * 3] = direction.x;
+			moonDirections[i * 3 + 1] = direction.y;
+			moonDirections[i * 3 + 2] = direction.z;
+		}
+	}
+
+	/**
+	 * Set the moon discs
+	 * 
+	 * @param radius -
+	 *            angular radius of the moon discs, in radians
+	 * @param color -
+	 *            color of the moon discs
+	 */
+	public void setMoonDisc(float radius, ColorRGBA color) {
+		moonRadius = radius;
+		moonColor.set(color);
+		layersChanged = true;
+	}
+
+	/**
+	 * Set the opacity of the stars
+	 * 
+	 * @param visibility -
+	 *            0 to hide the stars, up to 1
+	 */
+	public void setStarVisibility(float visibility) {
+		starVisibility = Math.max(0, Math.min(1, visibility));
+	}
+
+	/**
+	 * Set the sun discs
+	 * 
+	 * @param radius -
+	 *            angular radius of the sun discs, in radians
+	 * @param intensity -
+	 *            brightness added by the sun discs, 1 being white
+	 */
+	public void setSunDisc(float radius, float intensity) {
+		sunRadius = radius;
+		sunIntensity = intensity;
+		layersChanged = true;
+	}
+
+	/**
+	 * Set the color change below which an incremental bake keeps a tile
+	 * 
+	 * @param tolerance -
+	 *            largest change of a color channel, or 0 to bake all tiles
+	 */
+	public void setTolerance(float tolerance) {
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * Bakes the images on the common fork-join pool
+	 */
+	public void bake() {
+		bake(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Bakes the images, only the tiles that changed if the shading parameters
+	 * and the number of suns and moons are the same as at the last bake and
+	 * the stars did not fade by more than the tolerance
+	 * 
+	 * @param pool -
+	 *            pool the tiles are baked on
+	 */
+	public void bake(ForkJoinPool pool) {
+		if (model == null)
+			throw new IllegalStateException("No sky set");
+		boolean incremental = !layersChanged && tolerance > 0
+				&& bakedSunDirections != null
+				&& bakedSunDirections.length == sunDirections.length
+				&& bakedMoonDirections.length == moonDirections.length
+				&& Math.abs(starVisibility - bakedStarVisibility) <= tolerance;
+		synchronized (tilesBaked) {
+			tilesBaked[0] = 0;
+		}
+		int run = Math.max(1, tileCos.length
+				/ (pool.getParallelism() * TASKS_PER_CORE));
+		pool.invoke(new TileBake(0, tileCos.length, run, incremental));
+		bakedSunDirections = sunDirections;
+		bakedMoonDirections = moonDirections;
+		if (!incremental)
+			bakedStarVisibility = starVisibility;
+		layersChanged = false;
+	}
+
+	private void bakeTile(int tile, boolean incremental, TileScratch scratch) {
+		int image = tile / (tilesX * tilesY);
+		int ty = tile / tilesX % tilesY;
+		int tx = tile % tilesX;
+		int x0 = tx * TILE_SIZE;
+		int y0 = ty * TILE_SIZE;
+		int x1 = Math.min(x0 + TILE_SIZE, width);
+		int y1 = Math.min(y0 + TILE_SIZE, height);
+		float[] direction = scratch.direction;
+		ColorRGBA color = scratch.color;
+
+		// Corners and center of the tile
+		float[] probe = scratch.probe;
+		for (int p = 0; p < 5; p++) {
+			float px = p == 4 ? (x0 + x1) * 0.5f : (p & 1) == 0 ? x0 : x1;
+			float py = p == 4 ? (y0 + y1) * 0.5f : p < 2 ? y0 : y1;
+			direction(image, px, py, direction);
+			sky.getRadiance(direction[0], direction[1], direction[2],
+					scratch.radiance, color);
+			probe[p * 3] = color.r;
+			probe[p * 3 + 1] = color.g;
+			probe[p * 3 + 2] = color.b;
+		}
+		int offset = tile * 15;
+		if (incremental && !isDiscOver(tile, sunDirections, sunRadius)
+				&& !isDiscOver(tile, bakedSunDirections, sunRadius)
+				&& !isDiscOver(tile, moonDirections, moonRadius)
+				&& !isDiscOver(tile, bakedMoonDirections, moonRadius)) {
+			boolean changed = false;
+			for (int i = 0; i < 15 && !changed; i++)
+				changed = !(Math.abs(probe[i] - probes[offset + i]) <= tolerance);
+			if (!changed)
+				return;
+		}
+		System.arraycopy(probe, 0, probes, offset, 15);
+
+		ByteBuffer texels = images[image];
+		for (int y = y0; y < y1; y++) {
+			for (int x = x0; x < x1; x++) {
+				direction(image, x + 0.5f, y + 0.5f, direction);
+				shade(direction, incremental ? bakedStarVisibility
+						: starVisibility, scratch.radiance, color);
+				encode(color, texels, (y * width + x) * 4);
+			}
+		}
+		synchronized (tilesBaked) {
+			tilesBaked[0]++;
+		}
+	}
+
+	/**
+	 * Computes the color of a direction with all layers
+	 * 
+	 * @param stars -
+	 *            opacity of the stars
+	 * @param radiance -
+	 *            scratch array of four floats
+	 */
+	private void shade(float[] direction, float stars, float[] radiance,
+			ColorRGBA store) {
+		float x = direction[0];
+		float y = direction[1];
+		float z = direction[2];
+		sky.getRadiance(x, y, z, radiance, store);
+		if (y <= 0)
+			return;
+
+		float cosSun = FastMath.cos(sunRadius);
+		for (int i = 0; i < sunDirections.length; i += 3) {
+			if (sunDirections[i + 1] > 0
+					&& x * sunDirections[i] + y * sunDirections[i + 1] + z
+							* sunDirections[i + 2] >= cosSun) {
+				store.r += sunIntensity;
+				store.g += sunIntensity;
+				store.b += sunIntensity;
+			}
+		}
+		float cosMoon = FastMath.cos(moonRadius);
+		for (int i = 0; i < moonDirections.length; i += 3) {
+			if (x * moonDirections[i] + y * moonDirections[i + 1] + z
+					* moonDirections[i + 2] >= cosMoon) {
+				store.r = Math.max(store.r, moonColor.r);
+				store.g = Math.max(store.g, moonColor.g);
+				store.b = Math.max(store.b, moonColor.b);
+			}
+		}
+		if (stars > 0) {
+			float star = star(x, y, z) * stars;
+			store.r += star;
+			store.g += star;
+			store.b += star;
+		}
+	}
+
+	/**
+	 * @return brightness of the star in the cell of a fixed grid holding a
+	 *         direction, or 0 if the cell has none
+	 */
+	private static float star(float x, float y, float z) {
+		float ax = Math.abs(x);
+		float ay = Math.abs(y);
+		float az = Math.abs(z);
+		float major = Math.max(ax, Math.max(ay, az));
+		int face = major == ax ? (x > 0 ? 0 : 1) : major == ay ? (y > 0 ? 2
+				: 3) : (z > 0 ? 4 : 5);
+		int u = (int) (((face < 2 ? z : x) / major + 1) * 512);
+		int v = (int) (((face < 4 && face > 1 ? z : y) / major + 1) * 512);
+		int hash = (face * 1031 + u) * 1031 + v;
+		hash ^= hash >>> 16;
+		hash *= 0x45d9f3b;
+		hash ^= hash >>> 16;
+		hash *= 0x45d9f3b;
+		hash ^= hash >>> 16;
+		float random = (hash & 0xffffff) / (float) 0x1000000;
+		return random < STAR_DENSITY ? random / STAR_DENSITY : 0;
+	}
+
+	/**
+	 * @return true if one of the discs may be over a tile
+	 */
+	private boolean isDiscOver(int tile, float[] discs, float radius) {
+		float cosTile = tileCos[tile];
+		float sinTile = FastMath.sqrt(Math.max(0, 1 - cosTile * cosTile));
+		// cosine of the tile angular radius grown by the disc radius
+		float cosReach = cosTile * FastMath.cos(radius) - sinTile
+				* FastMath.sin(radius);
+		for (int i = 0; i < discs.length; i += 3) {
+			float cos = tileCenter[tile * 3] * discs[i]
+					+ tileCenter[tile * 3 + 1] * discs[i + 1]
+					+ tileCenter[tile * 3 + 2] * discs[i + 2];
+			if (cos >= cosReach)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Computes the center and angular radius of each tile
+	 */
+	private void measureTiles() {
+		float[] center = new float[3];
+		float[] corner = new float[3];
+		for (int tile = 0; tile < tileCos.length; tile++) {
+			int image = tile / (tilesX * tilesY);
+			int ty = tile / tilesX % tilesY;
+			int tx = tile % tilesX;
+			int x0 = tx * TILE_SIZE;
+			int y0 = ty * TILE_SIZE;
+			int x1 = Math.min(x0 + TILE_SIZE, width);
+			int y1 = Math.min(y0 + TILE_SIZE, height);
+			direction(image, (x0 + x1) * 0.5f, (y0 + y1) * 0.5f, center);
+			// Sample the edges, equirectangular tiles being curved
+			float cos = 1;
+			for (int p = 0; p <= EDGE_SAMPLES; p++) {
+				float fx = x0 + (x1 - x0) * (float) p / EDGE_SAMPLES;
+				float fy = y0 + (y1 - y0) * (float) p / EDGE_SAMPLES;
+				cos = Math.min(cos, cosTo(center, image, fx, y0, corner));
+				cos = Math.min(cos, cosTo(center, image, fx, y1, corner));
+				cos = Math.min(cos, cosTo(center, image, x0, fy, corner));
+				cos = Math.min(cos, cosTo(center, image, x1, fy, corner));
+			}
+			// margin for the curvature between the samples
+			cos = FastMath.cos(Math.min(FastMath.PI, FastMath.acos(cos)
+					* (1 + 1.0f / EDGE_SAMPLES)));
+			tileCos[tile] = cos;
+			System.arraycopy(center, 0, tileCenter, tile * 3, 3);
+		}
+	}
+
+	/**
+	 * @return cosine of the angle between a direction and an image position
+	 */
+	private float cosTo(float[] direction, int image, float x, float y,
+			float[] store) {
+		direction(image, x, y, store);
+		return direction[0] * store[0] + direction[1] * store[1] + direction[2]
+				* store[2];
+	}
+
+	/**
+	 * Computes the unit direction of an image position
+	 */
+	private void direction(int image, float x, float y, float[] store) {
+		if (layout == EQUIRECTANGULAR) {
+			float lon = x / width * FastMath.TWO_PI;
+			float lat = FastMath.HALF_PI - y / height * FastMath.PI;
+			float cosLat = FastMath.cos(lat);
+			store[0] = cosLat * FastMath.cos(lon);
+			store[1] = FastMath.sin(lat);
+			store[2] = cosLat * FastMath.sin(lon);
+			return;
+		}
+		float s = 2 * x / width - 1;
+		float t = 2 * y / height - 1;
+		float dx, dy, dz;
+		switch (image) {
+		case 0:
+			dx = 1;
+			dy = -t;
+			dz = -s;
+			break;
+		case 1:
+			dx = -1;
+			dy = -t;
+			dz = s;
+			break;
+		case 2:
+			dx = s;
+			dy = 1;
+			dz = t;
+			break;
+		case 3:
+			dx = s;
+			dy = -1;
+			dz = -t;
+			break;
+		case 4:
+			dx = s;
+			dy = -t;
+			dz = 1;
+			break;
+		default:
+			dx = -s;
+			dy = -t;
+			dz = -1;
+		}
+		float length = FastMath.sqrt(dx * dx + dy * dy + dz * dz);
+		store[0] = dx / length;
+		store[1] = dy / length;
+		store[2] = dz / length;
+	}
+
+	private void encode(ColorRGBA color, ByteBuffer texels, int offset) {
+		float r = Math.max(0, color.r);
+		float g = Math.max(0, color.g);
+		float b = Math.max(0, color.b);
+		if (format == RGBA8) {
+			texels.put(offset, (byte) Math.round(Math.min(1, r) * 255));
+			texels.put(offset + 1, (byte) Math.round(Math.min(1, g) * 255));
+			texels.put(offset + 2, (byte) Math.round(Math.min(1, b) * 255));
+			texels.put(offset + 3, (byte) 255);
+			return;
+		}
+		float max = Math.max(r, Math.max(g, b));
+		if (!(max > 1e-32f)) {
+			texels.putInt(offset, 0);
+			return;
+		}
+		// mantissas in [128, 256) for the largest channel
+		int exponent = Math.getExponent(max) + 1;
+		float scale = Math.scalb(256.0f, -exponent);
+		texels.put(offset, (byte) Math.min(255, (int) (r * scale)));
+		texels.put(offset + 1, (byte) Math.min(255, (int) (g * scale)));
+		texels.put(offset + 2, (byte) Math.min(255, (int) (b * scale)));
+		texels.put(offset + 3, (byte) (exponent + 128));
+	}
+}
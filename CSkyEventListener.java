@@ -0,0 +1,38 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.utils;
+
+/**
+ * Receives the rise, set and twilight events of a body.
+ */
+public interface CSkyEventListener {
+	/**
+	 * Called when the simulated time goes past an event.
+	 *
+	 * @param solver -
+	 *            the solver firing the event
+	 * @param event -
+	 *            one of the <code>CSkyEventSolver</code> event constants
+	 * @param time -
+	 *            time of the event in milliseconds since 1970-01-01 UTC
+	 */
+	void skyEvent(CSkyEventSolver solver, int event, long time);
+}
@@ -0,0 +1,285 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.utils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.jme.math.Vector3f;
+
+/**
+ * Finds the rise, set and twilight instants of a body for an earth site, and
+ * fires them to listeners as simulated time goes by.<br>
+ * Altitude is the observer latitude folded on the horizon, so that 0 is the
+ * horizon and -PI/2 the lowest point of the daily circle; it is the same
+ * quantity <code>CSkyDome</code> uses to tell night time. Event instants are
+ * found by sampling each UTC day every ten minutes and bisecting every
+ * crossing down to one second. Days are solved once and cached.<br>
+ * This class is not thread safe.
+ */
+public class CSkyEventSolver {
+	/** Body crosses the horizon upwards */
+	public static final int RISE = 0;
+	/** Body crosses the horizon downwards */
+	public static final int SET = 1;
+	/** Body rises above -6 degrees */
+	public static final int CIVIL_DAWN = 2;
+	/** Body sets below -6 degrees */
+	public static final int CIVIL_DUSK = 3;
+	/** Body rises above -12 degrees */
+	public static final int NAUTICAL_DAWN = 4;
+	/** Body sets below -12 degrees */
+	public static final int NAUTICAL_DUSK = 5;
+	/** Body rises above -18 degrees */
+	public static final int ASTRONOMICAL_DAWN = 6;
+	/** Body sets below -18 degrees */
+	public static final int ASTRONOMICAL_DUSK = 7;
+	/** Number of event kinds */
+	public static final int EVENT_COUNT = 8;
+	/** Time returned for events not happening in a day */
+	public static final long NONE = Long.MIN_VALUE;
+
+	/** Altitudes of the rise/set, civil, nautical and astronomical events */
+	private static final double[] THRESHOLDS = { 0, -Math.PI / 30,
+			-Math.PI / 15, -Math.PI / 10 };
+	private static final long SAMPLE_STEP = 600000L;
+	private static final int SAMPLES = (int) (CAstroMath.MILLIS_PER_DAY / SAMPLE_STEP);
+	private static final long PRECISION = 1000L;
+	private static final int CACHED_DAYS = 4;
+	/** Longest time span whose events are all fired by an update */
+	private static final long MAX_CATCH_UP = 2 * CAstroMath.MILLIS_PER_DAY;
+
+	/** Solved events of a day */
+	private static class Day {
+		long[] times = new long[EVENT_COUNT];
+	}
+
+	private CEphemerisSource source;
+	private float siteLat;
+	private float siteLon;
+	private LinkedHashMap<Long, Day> days;
+	private ArrayList<CSkyEventListener> listeners = new ArrayList<CSkyEventListener>();
+
+	// scratch
+	private CAstroContext context = new CAstroContext();
+	private double[] ecliptic = new double[3];
+	private Vector3f position = new Vector3f();
+	private double[] samples = new double[SAMPLES + 1];
+
+	// scheduling
+	private boolean started;
+	private long lastTime;
+	private long nextTime;
+	private int nextEvent;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param source -
+	 *            series of the body
+	 * @param siteLat -
+	 *            earth site latitude
+	 * @param siteLon -
+	 *            earth site longitude
+	 */
+	public CSkyEventSolver(CEphemerisSource source, float siteLat,
+			float siteLon) {
+		this.source = source;
+		this.siteLat = siteLat;
+		this.siteLon = siteLon;
+		this.days = new LinkedHashMap<Long, Day>(CACHED_DAYS * 2, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Day> eldest) {
+				return size() > CACHED_DAYS;
+			}
+		};
+	}
+
+	public void addListener(CSkyEventListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(CSkyEventListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * @param time -
+	 *            time in milliseconds since 1970-01-01 UTC
+	 * @return altitude of the body, within (-PI/2, PI/2) interval
+	 */
+	public double getAltitude(long time) {
+		context.set(time, siteLat, siteLon);
+		source.getEclipticCoords(context.getCenturies(), ecliptic);
+		CAstroMath.toHorizon(context.getHorizonMatrix(),
+				ecliptic[CEphemerisSource.LAMBDA],
+				ecliptic[CEphemerisSource.BETA],
+				ecliptic[CEphemerisSource.DISTANCE], position);
+		// same as asin(sin(atan2(y, -x)))
+		double norm = Math.sqrt(position.x * position.x + position.y
+				* position.y);
+		return norm == 0 ? 0 : Math.asin(position.y / norm);
+	}
+
+	/**
+	 * @param time -
+	 *            any time of the wanted UTC day, in milliseconds since
+	 *            1970-01-01 UTC
+	 * @param event -
+	 *            one of the event constants
+	 * @return time of the event in that day, or NONE if it does not happen
+	 */
+	public long getEventTime(long time, int event) {
+		return getDay(dayIndex(time)).times[event];
+	}
+
+	/**
+	 * Set earth site, dropping the cached days if it changed. The events of
+	 * the old site are not fired for the new one.
+	 *
+	 * @return true if the events are scheduled again, so that the state of
+	 *         the body must be read from its current position
+	 */
+	public boolean setSite(float siteLat, float siteLon) {
+		if (this.siteLat == siteLat && this.siteLon == siteLon)
+			return false;
+		this.siteLat = siteLat;
+		this.siteLon = siteLon;
+		days.clear();
+		if (!started)
+			return false;
+		scheduleAfter(lastTime);
+		return true;
+	}
+
+	/**
+	 * Fires to the listeners, in order, every event that happened since last
+	 * update. Going back in time or jumping ahead more than two days does not
+	 * replay the skipped events.
+	 *
+	 * @param time -
+	 *            current time in milliseconds since 1970-01-01 UTC
+	 * @return true if events were skipped, at the first update or when
+	 *         going back in time or too far ahead, so that the state of the
+	 *         body must be read from its current position
+	 */
+	public boolean update(long time) {
+		if (!started || time < lastTime) {
+			started = true;
+			lastTime = time;
+			scheduleAfter(time);
+			return true;
+		}
+		boolean skipped = false;
+		if (time - lastTime > MAX_CATCH_UP) {
+			lastTime = time - MAX_CATCH_UP;
+			scheduleAfter(lastTime);
+			skipped = true;
+		}
+
+		while (nextTime <= time) {
+			long eventTime = nextTime;
+			if (nextEvent >= 0) {
+				for (int i = 0; i < listeners.size(); i++)
+					listeners.get(i).skyEvent(this, nextEvent, eventTime);
+			}
+			scheduleAfter(eventTime);
+		}
+		lastTime = time;
+		return skipped;
+	}
+
+	/**
+	 * Finds the first event strictly after the given time. If there is none
+	 * in two days, schedules a new search instead.
+	 */
+	private void scheduleAfter(long time) {
+		long index = dayIndex(time);
+		nextTime = (index + 2) * CAstroMath.MILLIS_PER_DAY;
+		nextEvent = -1;
+		for (long d = index; d <= index + 1; d++) {
+			long[] times = getDay(d).times;
+			for (int e = 0; e < EVENT_COUNT; e++) {
+				if (times[e] != NONE && times[e] > time && times[e] < nextTime) {
+					nextTime = times[e];
+					nextEvent = e;
+				}
+			}
+			if (nextEvent >= 0)
+				return;
+		}
+	}
+
+	private long dayIndex(long time) {
+		long index = time / CAstroMath.MILLIS_PER_DAY;
+		if (time % CAstroMath.MILLIS_PER_DAY < 0)
+			index--;
+		return index;
+	}
+
+	private Day getDay(long index) {
+		Day day = days.get(index);
+		if (day == null) {
+			day = solve(index * CAstroMath.MILLIS_PER_DAY);
+			days.put(index, day);
+		}
+		return day;
+	}
+
+	private Day solve(long start) {
+		Day day = new Day();
+		for (int e = 0; e < EVENT_COUNT; e++)
+			day.times[e] = NONE;
+
+		for (int i = 0; i <= SAMPLES; i++)
+			samples[i] = getAltitude(start + i * SAMPLE_STEP);
+
+		for (int k = 0; k < THRESHOLDS.length; k++) {
+			double h = THRESHOLDS[k];
+			for (int i = 0; i < SAMPLES; i++) {
+				boolean below0 = samples[i] < h;
+				boolean below1 = samples[i + 1] < h;
+				if (below0 == below1)
+					continue;
+				// rising events are even, setting ones odd
+				int e = 2 * k + (below0 ? 0 : 1);
+				if (day.times[e] == NONE)
+					day.times[e] = bisect(start + i * SAMPLE_STEP, start
+							+ (i + 1) * SAMPLE_STEP, h, below0);
+			}
+		}
+		return day;
+	}
+
+	private long bisect(long lo, long hi, double h, boolean rising) {
+		while (hi - lo > PRECISION) {
+			long mid = lo + (hi - lo) / 2;
+			if ((getAltitude(mid) < h) == rising)
+				lo = mid;
+			else
+				hi = mid;
+		}
+		return hi;
+	}
+}
@@ -0,0 +1,189 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.xutils;
+
+import java.nio.FloatBuffer;
+
+import com.jme.math.FastMath;
+import com.jme.renderer.ColorRGBA;
+
+/**
+ * Irradiance of the sky as 9 spherical harmonics coefficients per channel,
+ * that is up to the second order. The sky colors are projected on the
+ * harmonics batch by batch, then convolved with the cosine lobe, after which
+ * the irradiance of any surface orientation costs a few multiplications.<br>
+ * The coefficients are laid out by harmonic, red, green and blue together, in
+ * the order Y00, Y1-1 (y), Y10 (z), Y11 (x), Y2-2 (xy), Y2-1 (yz), Y20
+ * (3z&sup2;-1), Y21 (xz), Y22 (x&sup2;-y&sup2;).
+ */
+public class CSkyIrradiance {
+	public static final int COEFFICIENTS = 9;
+	// harmonics normalization
+	private static final float Y0 = 0.282095f;
+	private static final float Y1 = 0.488603f;
+	private static final float Y2 = 1.092548f;
+	private static final float Y20 = 0.315392f;
+	private static final float Y22 = 0.546274f;
+	// cosine lobe convolution of each band
+	private static final float A0 = FastMath.PI;
+	private static final float A1 = 2.0f * FastMath.PI / 3.0f;
+	private static final float A2 = FastMath.PI / 4.0f;
+
+	/** Radiance coefficients being projected */
+	private float[] radiance = new float[COEFFICIENTS * 3];
+	/** Irradiance coefficients of the last projection */
+	private float[] irradiance = new float[COEFFICIENTS * 3];
+	private float[] basis = new float[COEFFICIENTS];
+
+	/**
+	 * Starts a new projection
+	 */
+	public void begin() {
+		for (int i = 0; i < radiance.length; i++)
+			radiance[i] = 0;
+	}
+
+	/**
+	 * Projects sky colors sampled in several directions
+	 * 
+	 * @param x -
+	 *            x components of the unit directions
+	 * @param y -
+	 *            y components of the unit directions
+	 * @param z -
+	 *            z components of the unit directions
+	 * @param solidAngles -
+	 *            solid angle around each direction, in steradians
+	 * @param colors -
+	 *            colors of the directions, four floats each
+	 * @param count -
+	 *            number of directions
+	 */
+	public void add(float[] x, float[] y, float[] z, float[] solidAngles,
+			FloatBuffer colors, int count) {
+		float[] l = radiance;
+		for (int v = 0; v < count; v++) {
+			float w = solidAngles[v];
+			float r = colors.get(v * 4);
+			float g = colors.get(v * 4 + 1);
+			float b = colors.get(v * 4 + 2);
+			// Undefined colors do not light
+			if (w == 0 || Float.isNaN(r + g + b))
+				continue;
+			project(l, x[v], y[v], z[v], r * w, g * w, b * w);
+		}
+	}
+
+	/**
+	 * Adds a color weighted by its solid angle to the coefficients
+	 */
+	private static void project(float[] l, float vx, float vy, float vz,
+			float r, float g, float b) {
+		accumulate(l, 0, Y0, r, g, b);
+		accumulate(l, 1, Y1 * vy, r, g, b);
+		accumulate(l, 2, Y1 * vz, r, g, b);
+		accumulate(l, 3, Y1 * vx, r, g, b);
+		accumulate(l, 4, Y2 * vx * vy, r, g, b);
+		accumulate(l, 5, Y2 * vy * vz, r, g, b);
+		accumulate(l, 6, Y20 * (3 * vz * vz - 1), r, g, b);
+		accumulate(l, 7, Y2 * vx * vz, r, g, b);
+		accumulate(l, 8, Y22 * (vx * vx - vy * vy), r, g, b);
+	}
+
+	private static void accumulate(float[] l, int i, float basis, float r,
+			float g, float b) {
+		l[i * 3] += basis * r;
+		l[i * 3 + 1] += basis * g;
+		l[i * 3 + 2] += basis * b;
+	}
+
+	/**
+	 * Ends the projection, making its irradiance the current one
+	 */
+	public void end() {
+		for (int i = 0; i < COEFFICIENTS; i++) {
+			float a = i == 0 ? A0 : i < 4 ? A1 : A2;
+			for (int c = 0; c < 3; c++)
+				irradiance[i * 3 + c] = a * radiance[i * 3 + c];
+		}
+	}
+
+	/**
+	 * Makes irradiance coefficients computed elsewhere the current ones
+	 * 
+	 * @param coefficients -
+	 *            the 27 irradiance coefficients, as returned by
+	 *            {@link #getCoefficients(float[])}
+	 */
+	public void setCoefficients(float[] coefficients) {
+		System.arraycopy(coefficients, 0, irradiance, 0, irradiance.length);
+	}
+
+	/**
+	 * @param store -
+	 *            array receiving the 27 irradiance coefficients, or null
+	 * @return store
+	 */
+	public float[] getCoefficients(float[] store) {
+		if (store == null)
+			store = new float[COEFFICIENTS * 3];
+		System.arraycopy(irradiance, 0, store, 0, irradiance.length);
+		return store;
+	}
+
+	/**
+	 * Computes the irradiance of a surface
+	 * 
+	 * @param x -
+	 *            x component of the unit surface normal
+	 * @param y -
+	 *            y component of the unit surface normal
+	 * @param z -
+	 *            z component of the unit surface normal
+	 * @param store -
+	 *            color to store the irradiance in, with an alpha of 1
+	 * @return store
+	 */
+	public ColorRGBA getIrradiance(float x, float y, float z, ColorRGBA store) {
+		evaluate(x, y, z);
+		float r = 0;
+		float g = 0;
+		float b = 0;
+		for (int i = 0; i < COEFFICIENTS; i++) {
+			r += basis[i] * irradiance[i * 3];
+			g += basis[i] * irradiance[i * 3 + 1];
+			b += basis[i] * irradiance[i * 3 + 2];
+		}
+		return store.set(r, g, b, 1);
+	}
+
+	private void evaluate(float x, float y, float z) {
+		basis[0] = Y0;
+		basis[1] = Y1 * y;
+		basis[2] = Y1 * z;
+		basis[3] = Y1 * x;
+		basis[4] = Y2 * x * y;
+		basis[5] = Y2 * y * z;
+		basis[6] = Y20 * (3 * z * z - 1);
+		basis[7] = Y2 * x * z;
+		basis[8] = Y22 * (x * x - y * y);
+	}
+}
@@ -0,0 +1,206 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.xutils;
+
+import jives.utils.CCelestialObserver;
+
+/**
+ * Dome colors of a sun precomputed along its daily path. The path is sampled
+ * at evenly spaced times over a period starting at the current time, and the
+ * sky color of each sample, or keyframe, is stored for every dome vertex. The
+ * colors at any time within the period are a linear blend of the two
+ * keyframes around it, which costs far less than shading the sky.<br>
+ * The keyframes are computed again when the shading parameters or the site
+ * change, or when the time leaves the period, so the cache pays off when the
+ * sky parameters are steady. Night keyframes are stored like day ones, so the
+ * blend also smooths the night transition.
+ */
+public class CSkyKeyframeCache {
+	/** Default number of keyframes, one every quarter of an hour */
+	public static final int DEFAULT_KEYFRAMES = 97;
+	/** Default memory ceiling of the colors, in bytes */
+	public static final long DEFAULT_MAX_BYTES = 16L << 20;
+	/** Period covered by the keyframes, in milliseconds */
+	public static final long PERIOD = 24L * 3600000L;
+
+	private CSkyModel model;
+	private int requestedKeyframes;
+	private long maxBytes;
+	private int keyframes;
+	/** Sky colors of each keyframe and dome batch, four floats per vertex */
+	private float[][][] colors;
+	private long startTime;
+	private long step;
+	private int revision;
+	private boolean tableBaked;
+	private float siteLat;
+	private float siteLon;
+	private boolean built;
+
+	/**
+	 * Constructor. The keyframes are computed at the first update.
+	 * 
+	 * @param model -
+	 *            model the keyframes are shaded with
+	 * @param keyframes -
+	 *            number of keyframes over the period, at least 2
+	 * @param maxBytes -
+	 *            memory ceiling of the colors; fewer keyframes are kept if
+	 *            needed, but never less than 2
+	 */
+	public CSkyKeyframeCache(CSkyModel model, int keyframes, long maxBytes) {
+		if (keyframes < 2)
+			throw new IllegalArgumentException("Too few keyframes");
+		this.model = model;
+		this.requestedKeyframes = keyframes;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return number of keyframes actually kept, 0 before the first update
+	 */
+	public int getKeyframeCount() {
+		return keyframes;
+	}
+
+	/**
+	 * @return memory ceiling of the colors, in bytes
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @return model the keyframes are shaded with
+	 */
+	public CSkyModel getModel() {
+		return model;
+	}
+
+	/**
+	 * @return time of the first keyframe, in milliseconds since 1970-01-01
+	 *         UTC
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * Computes the keyframes again if the shading parameters, the site or the
+	 * time are out of those they were computed for. Moves the sun of the
+	 * model when doing so.
+	 * 
+	 * @param observer -
+	 *            observer of the sun, at the current time
+	 * @param table -
+	 *            colors baked from the model, or null to evaluate the model
+	 * @param x -
+	 *            x components of the unit vertex normals of each batch
+	 * @param y -
+	 *            y components of the unit vertex normals of each batch
+	 * @param z -
+	 *            z components of the unit vertex normals of each batch
+	 * @return true if the keyframes were computed
+	 */
+	public boolean update(CCelestialObserver observer,
+			CSkyRadianceTable table, float[][] x, float[][] y, float[][] z) {
+		long time = observer.getCurrentTime();
+		if (built && revision == model.getRevision()
+				&& tableBaked == (table != null)
+				&& siteLat == observer.getSiteLatitude()
+				&& siteLon == observer.getSiteLongitude()
+				&& colors[0].length == x.length && time >= startTime
+				&& time <= startTime + (keyframes - 1) * step)
+			return false;
+		revision = model.getRevision();
+		tableBaked = table != null;
+		siteLat = observer.getSiteLatitude();
+		siteLon = observer.getSiteLongitude();
+		startTime = time;
+		if (table != null)
+			table.update();
+
+		// Fit the ceiling
+		long keyframeBytes = 0;
+		for (int i = 0; i < x.length; i++)
+			keyframeBytes += x[i].length * 16L;
+		keyframes = (int) Math.max(2, Math.min(requestedKeyframes, maxBytes
+				/ Math.max(1, keyframeBytes)));
+		step = PERIOD / (keyframes - 1);
+		if (colors == null || colors.length != keyframes
+				|| colors[0].length != x.length)
+			colors = new float[keyframes][x.length][];
+
+		// Sun path over the period
+		long[] times = new long[keyframes];
+		for (int k = 0; k < keyframes; k++)
+			times[k] = startTime + k * step;
+		double[] latitude = new double[keyframes];
+		double[] longitude = new double[keyframes];
+		observer.computePositions(times, siteLat, siteLon, null, null, null,
+				latitude, longitude);
+
+		for (int k = 0; k < keyframes; k++) {
+			model.setSun((float) latitude[k], (float) longitude[k]);
+			for (int i = 0; i < x.length; i++) {
+				int count = x[i].length;
+				if (colors[k][i] == null || colors[k][i].length != count * 4)
+					colors[k][i] = new float[count * 4];
+				if (table != null)
+					table.shade(x[i], y[i], z[i], 0, count, colors[k][i]);
+				else
+					model.shade(x[i], y[i], z[i], 0, count, colors[k][i]);
+			}
+		}
+		built = true;
+		return true;
+	}
+
+	/**
+	 * Blends the two keyframes around a time, within the period of the last
+	 * update
+	 * 
+	 * @param time -
+	 *            time in milliseconds since 1970-01-01 UTC
+	 * @param batch -
+	 *            index of the dome batch
+	 * @param store -
+	 *            array receiving red, green, blue and alpha of vertex
+	 *            <code>i</code> at index <code>4 * i</code>
+	 * @param add -
+	 *            true to add the colors to the stored ones
+	 */
+	public void blend(long time, int batch, float[] store, boolean add) {
+		long offset = Math.max(0, Math.min(time - startTime, (keyframes - 1)
+				* step));
+		int k = (int) Math.min(offset / step, keyframes - 2);
+		float f = (float) (offset - k * step) / step;
+		float[] c0 = colors[k][batch];
+		float[] c1 = colors[k + 1][batch];
+		if (add) {
+			for (int c = 0; c < c0.length; c++)
+				store[c] += c0[c] + f * (c1[c] - c0[c]);
+		} else {
+			for (int c = 0; c < c0.length; c++)
+				store[c] = c0[c] + f * (c1[c] - c0[c]);
+		}
+	}
+}
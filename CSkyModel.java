@@ -0,0 +1,519 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.xutils;
+
+import com.jme.math.FastMath;
+
+/**
+ * The Perez sky model used to color the sky dome: radiance of a sky direction
+ * for a sun position, converted from XYZ to RGB and tone mapped with the
+ * exposure and gamma settings.<br>
+ * Coefficients only depending on turbidity are computed when it is set, and
+ * the sun dependent terms when the sun is set, so that shading a direction
+ * allocates nothing. Shading does not modify the model and can be called from
+ * several threads as long as no setter is called meanwhile.
+ */
+public class CSkyModel {
+	/** Distribution coefficients for the luminance(Y) distribution function */
+	private static final float distributionLuminance[][] = { // Perez distributions
+	{ 0.17872f, -1.46303f }, // a = darkening or brightening of the horizon
+			{ -0.35540f, 0.42749f }, // b = luminance gradient near the
+			// horizon,
+			{ -0.02266f, 5.32505f }, // c = relative intensity of the
+			// circumsolar region
+			{ 0.12064f, -2.57705f }, // d = width of the circumsolar region
+			{ -0.06696f, 0.37027f } }; // e = relative backscattered light
+
+	/** Distribution coefficients for the x distribution function */
+	private static final float distributionXcomp[][] = {
+			{ -0.01925f, -0.25922f }, { -0.06651f, 0.00081f },
+			{ -0.00041f, 0.21247f }, { -0.06409f, -0.89887f },
+			{ -0.00325f, 0.04517f } };
+
+	/** Distribution coefficients for the y distribution function */
+	private static final float distributionYcomp[][] = {
+			{ -0.01669f, -0.26078f }, { -0.09495f, 0.00921f },
+			{ -0.00792f, 0.21023f }, { -0.04405f, -1.65369f },
+			{ -0.01092f, 0.05291f } };
+
+	/** Zenith x value */
+	private static final float zenithXmatrix[][] = {
+			{ 0.00165f, -0.00375f, 0.00209f, 0.00000f },
+			{ -0.02903f, 0.06377f, -0.03202f, 0.00394f },
+			{ 0.11693f, -0.21196f, 0.06052f, 0.25886f } };
+	/** Zenith y value */
+	private static final float zenithYmatrix[][] = {
+			{ 0.00275f, -0.00610f, 0.00317f, 0.00000f },
+			{ -0.04214f, 0.08970f, -0.04153f, 0.00516f },
+			{ 0.15346f, -0.26756f, 0.06670f, 0.26688f } };
+
+	/** Number of intervals of the gamma table */
+	private static final int GAMMA_SAMPLES = 4096;
+
+	// shading parameters, also read by the shading kernels
+	private float turbidity = 2.0f;
+	boolean isLinearExpControl;
+	float exposure = 18.0f;
+	float overcast;
+	float gammaCorrection = 2.5f;
+	/** Incremented whenever a shading parameter changes */
+	private int revision;
+	/** Gamma of the square roots of evenly spaced channel values */
+	private float[] gammaTable = new float[GAMMA_SAMPLES + 1];
+	// turbidity dependent terms
+	float[] perezLuminance = new float[5];
+	float[] perezX = new float[5];
+	float[] perezY = new float[5];
+	// sun dependent terms
+	boolean night;
+	float thetaSun;
+	float sunX;
+	float sunY;
+	float sunZ;
+	float zenithLuminance;
+	float zenithX;
+	float zenithY;
+
+	public CSkyModel() {
+		setTurbidity(turbidity);
+		buildGammaTable();
+	}
+
+	/**
+	 * Constructor copying the shading parameters of another model
+	 */
+	public CSkyModel(CSkyModel model) {
+		set(model);
+	}
+
+	/**
+	 * @param lat -
+	 *            a sun's latitude
+	 * @return true if this sun is fallen or not risen yet
+	 */
+	public static boolean isNightTime(float lat) {
+		return (lat > -0.9 * FastMath.PI && lat < -0.1 * FastMath.PI);
+	}
+
+	/**
+	 * @return Exposure factor
+	 */
+	public float getExposure() {
+		return exposure;
+	}
+
+	/**
+	 * @return gamma correction factor
+	 */
+	public float getGammaCorrection() {
+		return gammaCorrection;
+	}
+
+	/**
+	 * @return Over Cast factor
+	 */
+	public float getOvercastFactor() {
+		return overcast;
+	}
+
+	/**
+	 * @return a number changing whenever turbidity, exposure, overcast or
+	 *         gamma change
+	 */
+	public int getRevision() {
+		return revision;
+	}
+
+	/**
+	 * @return sun angle from the zenith, within (0, PI) interval
+	 */
+	public float getThetaSun() {
+		return thetaSun;
+	}
+
+	/**
+	 * @return get Turbidity factor
+	 */
+	public float getTurbidity() {
+		return turbidity;
+	}
+
+	/**
+	 * @return is linear exposure control enabled
+	 */
+	public boolean isLinearExposureControl() {
+		return isLinearExpControl;
+	}
+
+	/**
+	 * @return true if the sun is fallen or not risen yet
+	 */
+	public boolean isNight() {
+		return night;
+	}
+
+	/**
+	 * Set Exposure factor
+	 */
+	public void setExposure(boolean isLinearExpControl, float exposure) {
+		this.isLinearExpControl = isLinearExpControl;
+		this.exposure = 1.0f / clamp(exposure, 1.0f, CSkyDome.INFINITY);
+		revision++;
+	}
+
+	/**
+	 * Set gamma correction factor
+	 */
+	public void setGammaCorrection(float gamma) {
+		this.gammaCorrection = 1.0f / clamp(gamma, CSkyDome.EPSILON,
+				CSkyDome.INFINITY);
+		buildGammaTable();
+		revision++;
+	}
+
+	/**
+	 * Set Over Cast factor
+	 */
+	public void setOvercastFactor(float overcast) {
+		this.overcast = clamp(overcast, 0.0f, 1.0f);
+		revision++;
+	}
+
+	/**
+	 * Set the sun lighting the sky and compute the terms depending on it
+	 * 
+	 * @param lat -
+	 *            sun latitude, as given by its observer
+	 * @param lon -
+	 *            sun longitude, as given by its observer
+	 */
+	public void setSun(float lat, float lon) {
+		// Get solar position
+		// While latitude and longitude are given with EAST as 0, theta has 0 at
+		// zenith and phi has 0 at WEST. Make the appropriate conversions
+		if (lat >= 0)
+			thetaSun = FastMath.abs(FastMath.abs(lat) - FastMath.HALF_PI);
+		else
+			thetaSun = FastMath.PI
+					- FastMath.abs(FastMath.abs(lat) - FastMath.HALF_PI);
+		float phiSun = -Math.abs(lon + FastMath.PI);
+
+		sunX = FastMath.cos(FastMath.HALF_PI - thetaSun) * FastMath.cos(phiSun);
+		sunY = FastMath.sin(FastMath.HALF_PI - thetaSun);
+		sunZ = FastMath.cos(FastMath.HALF_PI - thetaSun) * FastMath.sin(phiSun);
+
+		setSunZenith(thetaSun, isNightTime(lat));
+	}
+
+	/**
+	 * Set the sun angle from the zenith only, for shading given the angles of
+	 * the directions to the sun
+	 * 
+	 * @param thetaSun -
+	 *            sun angle from the zenith, within (0, PI) interval
+	 * @param night -
+	 *            true to shade the night sky
+	 */
+	public void setSunZenith(float thetaSun, boolean night) {
+		this.thetaSun = thetaSun;
+		this.night = night;
+
+		// get zenith luminance
+		float chi = ((4.0f / 9.0f) - (turbidity / 120.0f))
+				* (FastMath.PI - (2.0f * thetaSun));
+		zenithLuminance = ((4.0453f * turbidity) - 4.9710f) * FastMath.tan(chi)
+				- (0.2155f * turbidity) + 2.4192f;
+		if (zenithLuminance < 0.0f)
+			zenithLuminance = -zenithLuminance;
+
+		// get x / y zenith
+		zenithX = getZenith(zenithXmatrix, thetaSun, turbidity);
+		zenithY = getZenith(zenithYmatrix, thetaSun, turbidity);
+
+		// make some precalculation
+		zenithX = perezFunctionO1(perezX, thetaSun, zenithX);
+		zenithY = perezFunctionO1(perezY, thetaSun, zenithY);
+		zenithLuminance = perezFunctionO1(perezLuminance, thetaSun,
+				zenithLuminance);
+	}
+
+	/**
+	 * Set Turbidity factor
+	 */
+	public void setTurbidity(float turbidity) {
+		this.turbidity = clamp(turbidity, 1.0f, 512.0f);
+		// get perez function parameters
+		getPerez(distributionLuminance, this.turbidity, perezLuminance);
+		getPerez(distributionXcomp, this.turbidity, perezX);
+		getPerez(distributionYcomp, this.turbidity, perezY);
+		revision++;
+	}
+
+	/**
+	 * Computes the color of a sky direction lit by the sun set
+	 * 
+	 * @param x -
+	 *            x component of the unit direction
+	 * @param y -
+	 *            y component of the unit direction
+	 * @param z -
+	 *            z component of the unit direction
+	 * @param store -
+	 *            array receiving red, green, blue and alpha
+	 */
+	public void shade(float x, float y, float z, float[] store) {
+		shade(y, x * sunX + y * sunY + z * sunZ, store);
+	}
+
+	/**
+	 * Computes the color of a sky direction lit by the sun set, given its
+	 * height and its angle to the sun
+	 * 
+	 * @param y -
+	 *            y component of the unit direction
+	 * @param cosGamma -
+	 *            cosine of the angle between the direction and the sun
+	 * @param store -
+	 *            array receiving red, green, blue and alpha
+	 */
+	public void shade(float y, float cosGamma, float[] store) {
+		shade(y, cosGamma, store, 0, false);
+	}
+
+	/**
+	 * Computes the colors of many sky directions lit by the sun set, given as
+	 * separate arrays of components
+	 * 
+	 * @param x -
+	 *            x components of the unit directions
+	 * @param y -
+	 *            y components of the unit directions
+	 * @param z -
+	 *            z components of the unit directions
+	 * @param from -
+	 *            index of the first direction
+	 * @param to -
+	 *            index after the last direction
+	 * @param store -
+	 *            array receiving red, green, blue and alpha of direction
+	 *            <code>i</code> at index <code>4 * i</code>
+	 */
+	public void shade(float[] x, float[] y, float[] z, int from, int to,
+			float[] store) {
+		shade(x, y, z, from, to, store, false);
+	}
+
+	/**
+	 * Computes the colors of many sky directions with the vector kernel when
+	 * it can run, with the scalar one otherwise
+	 * 
+	 * @param add -
+	 *            true to add the colors to the stored ones
+	 */
+	void shade(float[] x, float[] y, float[] z, int from, int to,
+			float[] store, boolean add) {
+		CSkyShadeKernel.getDefault().shade(this, x, y, z, from, to, store, add);
+	}
+
+	/**
+	 * @param offset -
+	 *            index of the red channel in the store
+	 * @param add -
+	 *            true to add the color to the stored one
+	 */
+	void shade(float y, float cosGamma, float[] store, int offset,
+			boolean add) {
+		// angle between sun and vertex
+		float gamma = FastMath.acos(cosGamma);
+
+		float cosTheta = 1.0f / y;
+		float cosGamma2 = FastMath.sqr(FastMath.cos(gamma));
+
+		// Compute x,y values
+		float x_value = perezFunctionO2(perezX, cosTheta, gamma, cosGamma2,
+				zenithX);
+		float y_value = perezFunctionO2(perezY, cosTheta, gamma, cosGamma2,
+				zenithY);
+
+		// luminance(Y) for clear & overcast sky
+		float yClear = perezFunctionO2(perezLuminance, cosTheta, gamma,
+				cosGamma2, zenithLuminance);
+		float yOver = (1.0f + 2.0f * y) / 3.0f;
+
+		float _Y = FastMath.LERP(overcast, yClear, yOver);
+		float _X = (x_value / y_value) * _Y;
+		float _Z = ((1.0f - x_value - y_value) / y_value) * _Y;
+		if (night) {
+			// It's night time
+			_X *= 0.01f;
+			_Y *= 0.01f;
+			_Z *= -0.045f;
+		}
+
+		// XYZ to RGB
+		float r = 3.240479f * _X - 1.537150f * _Y - 0.498535f * _Z;
+		float g = -0.969256f * _X + 1.875992f * _Y + 0.041556f * _Z;
+		float b = 0.055648f * _X - 0.204043f * _Y + 1.057311f * _Z;
+		toneMap(r, g, b, store, offset, add);
+	}
+
+	/**
+	 * Applies exposure and gamma to a linear RGB color
+	 * 
+	 * @param offset -
+	 *            index of the red channel in the store
+	 * @param add -
+	 *            true to add the color to the stored one
+	 */
+	void toneMap(float r, float g, float b, float[] store, int offset,
+			boolean add) {
+		float a = 1.0f;
+
+		// Exposure: the RGB to HSV to RGB round trip only scaled the value,
+		// that is the largest channel, so scale all channels with it
+		float maxColor = Math.max(Math.max(r, g), b);
+		float value;
+		if (isLinearExpControl) { // linear scale
+			value = maxColor * exposure;
+		} else { // exp scale
+			value = 1.0f - FastMath.exp(-exposure * maxColor);
+		}
+		if (FastMath.abs(maxColor) < CSkyDome.EPSILON) { // r = g = b = 0
+			r = value;
+			g = value;
+			b = value;
+			a = value;
+		} else {
+			float minColor = Math.min(Math.min(r, g), b);
+			if (FastMath.abs((maxColor - minColor) / maxColor) < CSkyDome.EPSILON)
+				a = value; // achromatic (grey)
+			float scale = value / maxColor;
+			r *= scale;
+			g *= scale;
+			b *= scale;
+		}
+
+		// gamma control, clamping rgb between 0.0 - 1.0
+		r = gamma(r);
+		g = gamma(g);
+		b = gamma(b);
+		if (add) {
+			store[offset] += r;
+			store[offset + 1] += g;
+			store[offset + 2] += b;
+			store[offset + 3] += a;
+		} else {
+			store[offset] = r;
+			store[offset + 1] = g;
+			store[offset + 2] = b;
+			store[offset + 3] = a;
+		}
+	}
+
+	/**
+	 * Copies the shading parameters of another model
+	 */
+	public void set(CSkyModel model) {
+		isLinearExpControl = model.isLinearExpControl;
+		exposure = model.exposure;
+		overcast = model.overcast;
+		gammaCorrection = model.gammaCorrection;
+		System.arraycopy(model.gammaTable, 0, gammaTable, 0, gammaTable.length);
+		setTurbidity(model.turbidity);
+	}
+
+	private void buildGammaTable() {
+		for (int i = 0; i <= GAMMA_SAMPLES; i++) {
+			float u = (float) i / GAMMA_SAMPLES;
+			gammaTable[i] = FastMath.pow(u * u, gammaCorrection);
+		}
+	}
+
+	/**
+	 * clamp the value between min and max values
+	 */
+	private float clamp(float value, float min, float max) {
+		if (value < min)
+			return min;
+		else if (value > max)
+			return max;
+		else
+			return value;
+	}
+
+	/**
+	 * @return gamma corrected channel, clamped between 0.0 - 1.0
+	 */
+	private float gamma(float c) {
+		if (!(c > 0))
+			return 0;
+		if (c >= 1)
+			return 1;
+		// Indexing by the square root keeps the steep part near 0 accurate
+		float u = FastMath.sqrt(c) * GAMMA_SAMPLES;
+		int i = (int) u;
+		if (i == 0)
+			return FastMath.pow(c, gammaCorrection);
+		return gammaTable[i] + (u - i) * (gammaTable[i + 1] - gammaTable[i]);
+	}
+
+	private void getPerez(float[][] distribution, float turbidity,
+			float[] perez) {
+		perez[0] = distribution[0][0] * turbidity + distribution[0][1];
+		perez[1] = distribution[1][0] * turbidity + distribution[1][1];
+		perez[2] = distribution[2][0] * turbidity + distribution[2][1];
+		perez[3] = distribution[3][0] * turbidity + distribution[3][1];
+		perez[4] = distribution[4][0] * turbidity + distribution[4][1];
+	}
+
+	private float getZenith(float[][] zenithMatrix, float theta, float turbidity) {
+		float theta2 = theta * theta;
+		float theta3 = theta * theta2;
+
+		return (zenithMatrix[0][0] * theta3 + zenithMatrix[0][1] * theta2
+				+ zenithMatrix[0][2] * theta + zenithMatrix[0][3])
+				* turbidity
+				* turbidity
+				+ (zenithMatrix[1][0] * theta3 + zenithMatrix[1][1] * theta2
+						+ zenithMatrix[1][2] * theta + zenithMatrix[1][3])
+				* turbidity
+				+ (zenithMatrix[2][0] * theta3 + zenithMatrix[2][1] * theta2
+						+ zenithMatrix[2][2] * theta + zenithMatrix[2][3]);
+	}
+
+	private float perezFunctionO1(float[] perezCoeffs, float thetaSun,
+			float zenithValue) {
+		float val = (1.0f + perezCoeffs[0] * FastMath.exp(perezCoeffs[1]))
+				* (1.0f + perezCoeffs[2]
+						* FastMath.exp(perezCoeffs[3] * thetaSun) + perezCoeffs[4]
+						* FastMath.sqr(FastMath.cos(thetaSun)));
+		return zenithValue / val;
+	}
+
+	private float perezFunctionO2(float[] perezCoeffs, float cosTheta,
+			float gamma, float cosGamma2, float zenithValue) {
+		return zenithValue
+				* (1.0f + perezCoeffs[0]
+						* FastMath.exp(perezCoeffs[1] * cosTheta))
+				* (1.0f + perezCoeffs[2] * FastMath.exp(perezCoeffs[3] * gamma) + perezCoeffs[4]
+						* cosGamma2);
+	}
+}
@@ -0,0 +1,279 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.xutils;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.jme.math.FastMath;
+import com.jme.renderer.ColorRGBA;
+
+/**
+ * Sky colors in any direction, for the code reflecting or lighting with the
+ * sky. The sky is described by a snapshot of its suns and shading parameters,
+ * replaced by the dome whenever it is recolored. Directions are quantized to
+ * the cells of a cube map, and the color of each cell center is computed with
+ * the sky model at the first query and kept until the next snapshot.<br>
+ * Queries can be made from any thread: snapshots and cells are immutable and
+ * replaced as a whole, so a query never waits and never reads a cell of
+ * another snapshot.
+ */
+public class CSkyRadianceCache {
+	/** Default number of cells along the edge of a cube map face */
+	public static final int DEFAULT_RESOLUTION = 64;
+	/** Lowest height at which directions are shaded, the horizon color */
+	private static final float HORIZON_Y = 0.001f;
+
+	/** Sky a set of cells is computed for */
+	private static final class Sky {
+		final int generation;
+		final CSkyModel model;
+		final float[] sunLatitude;
+		final float[] sunLongitude;
+		final ColorRGBA base;
+		/** Models with the suns set, built at the first query */
+		volatile CSkyModel[] suns;
+
+		Sky(int generation, CSkyModel model, float[] sunLatitude,
+				float[] sunLongitude, ColorRGBA base) {
+			this.generation = generation;
+			this.model = model;
+			this.sunLatitude = sunLatitude;
+			this.sunLongitude = sunLongitude;
+			this.base = base;
+		}
+	}
+
+	/** Color of a cell center for a given sky */
+	private static final class Cell {
+		final int generation;
+		final float r;
+		final float g;
+		final float b;
+		final float a;
+
+		Cell(int generation, float[] color) {
+			this.generation = generation;
+			r = color[0];
+			g = color[1];
+			b = color[2];
+			a = color[3];
+		}
+	}
+
+	private final int resolution;
+	private final Cell[] cells;
+	private final AtomicReference<Sky> sky = new AtomicReference<Sky>();
+
+	public CSkyRadianceCache() {
+		this(DEFAULT_RESOLUTION);
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param resolution -
+	 *            number of cells along the edge of a cube map face, or 0 to
+	 *            shade each direction exactly without caching
+	 */
+	public CSkyRadianceCache(int resolution) {
+		if (resolution < 0)
+			throw new IllegalArgumentException("Negative resolution");
+		this.resolution = resolution;
+		cells = new Cell[6 * resolution * resolution];
+	}
+
+	/**
+	 * @return number of cells along the edge of a cube map face, or 0
+	 */
+	public int getResolution() {
+		return resolution;
+	}
+
+	/**
+	 * Replaces the sky the colors are computed for, dropping the cached ones
+	 * 
+	 * @param model -
+	 *            shading parameters, not modified afterwards
+	 * @param sunLatitude -
+	 *            latitudes of the suns, not modified afterwards
+	 * @param sunLongitude -
+	 *            longitudes of the suns, not modified afterwards
+	 * @param base -
+	 *            color the sun colors are added to
+	 */
+	public void setSky(CSkyModel model, float[] sunLatitude,
+			float[] sunLongitude, ColorRGBA base) {
+		Sky last = sky.get();
+		sky.set(new Sky(last != null ? last.generation + 1 : 1, model,
+				sunLatitude, sunLongitude, new ColorRGBA(base)));
+	}
+
+	/**
+	 * Computes the sky color in a direction. Directions below the horizon
+	 * get the horizon color.
+	 * 
+	 * @param x -
+	 *            x component of the direction
+	 * @param y -
+	 *            y component of the direction
+	 * @param z -
+	 *            z component of the direction
+	 * @param store -
+	 *            color to store the result in
+	 * @return store, or black if no sky was set yet
+	 */
+	public ColorRGBA getRadiance(float x, float y, float z, ColorRGBA store) {
+		return getRadiance(x, y, z, null, store);
+	}
+
+	/**
+	 * Computes the sky color in a direction, shading in a scratch array of
+	 * the caller so that directions shaded exactly, or cells shaded for the
+	 * first time, do not allocate it. Directions below the horizon get the
+	 * horizon color.
+	 * 
+	 * @param x -
+	 *            x component of the direction
+	 * @param y -
+	 *            y component of the direction
+	 * @param z -
+	 *            z component of the direction
+	 * @param scratch -
+	 *            array of four floats, not shared with other threads, or
+	 *            null to allocate one when shading
+	 * @param store -
+	 *            color to store the result in
+	 * @return store, or black if no sky was set yet
+	 */
+	public ColorRGBA getRadiance(float x, float y, float z, float[] scratch,
+			ColorRGBA store) {
+		Sky current = sky.get();
+		if (current == null)
+			return store.set(0, 0, 0, 1);
+		if (resolution == 0) {
+			float[] color = scratch != null ? scratch : new float[4];
+			shade(current, x, y, z, color);
+			return store.set(color[0], color[1], color[2], color[3]);
+		}
+
+		// Cube map face and cell of the direction
+		float ax = Math.abs(x);
+		float ay = Math.abs(y);
+		float az = Math.abs(z);
+		int face;
+		float u, v, major;
+		if (ax >= ay && ax >= az) {
+			face = x >= 0 ? 0 : 1;
+			major = ax;
+			u = z;
+			v = y;
+		} else if (ay >= az) {
+			face = y >= 0 ? 2 : 3;
+			major = ay;
+			u = x;
+			v = z;
+		} else {
+			face = z >= 0 ? 4 : 5;
+			major = az;
+			u = x;
+			v = y;
+		}
+		if (!(major > 0))
+			return store.set(current.base);
+		int i = cellIndex(u / major);
+		int j = cellIndex(v / major);
+		int index = (face * resolution + j) * resolution + i;
+
+		Cell cell = cells[index];
+		if (cell == null || cell.generation != current.generation) {
+			// Shade the cell center
+			float[] color = scratch != null ? scratch : new float[4];
+			float cu = (i + 0.5f) / resolution * 2 - 1;
+			float cv = (j + 0.5f) / resolution * 2 - 1;
+			float sign = (face & 1) == 0 ? 1 : -1;
+			switch (face >> 1) {
+			case 0:
+				shade(current, sign, cv, cu, color);
+				break;
+			case 1:
+				shade(current, cu, sign, cv, color);
+				break;
+			default:
+				shade(current, cu, cv, sign, color);
+			}
+			cell = new Cell(current.generation, color);
+			cells[index] = cell;
+		}
+		return store.set(cell.r, cell.g, cell.b, cell.a);
+	}
+
+	private int cellIndex(float t) {
+		int i = (int) ((t + 1) * 0.5f * resolution);
+		return i < 0 ? 0 : i >= resolution ? resolution - 1 : i;
+	}
+
+	/**
+	 * Shades a direction, not necessarily normalized
+	 */
+	private void shade(Sky current, float x, float y, float z, float[] store) {
+		CSkyModel[] suns = current.suns;
+		if (suns == null) {
+			// Threads racing here build equal models, any of them is kept
+			suns = new CSkyModel[current.sunLatitude.length];
+			for (int n = 0; n < suns.length; n++) {
+				suns[n] = new CSkyModel(current.model);
+				suns[n].setSun(current.sunLatitude[n],
+						current.sunLongitude[n]);
+			}
+			current.suns = suns;
+		}
+		float length = FastMath.sqrt(x * x + y * y + z * z);
+		x /= length;
+		y /= length;
+		z /= length;
+		if (y < HORIZON_Y) {
+			float horizontal = FastMath.sqrt(x * x + z * z);
+			float scale = horizontal > 0 ? FastMath.sqrt(1 - HORIZON_Y
+					* HORIZON_Y)
+					/ horizontal : 0;
+			x *= scale;
+			z *= scale;
+			y = HORIZON_Y;
+		}
+
+		float r = current.base.r;
+		float g = current.base.g;
+		float b = current.base.b;
+		float a = current.base.a;
+		for (int n = 0; n < suns.length; n++) {
+			CSkyModel sun = suns[n];
+			sun.shade(x, y, z, store);
+			r += Float.isNaN(store[0]) ? 0 : store[0];
+			g += Float.isNaN(store[1]) ? 0 : store[1];
+			b += Float.isNaN(store[2]) ? 0 : store[2];
+			a += Float.isNaN(store[3]) ? 0 : store[3];
+		}
+		store[0] = r;
+		store[1] = g;
+		store[2] = b;
+		store[3] = a;
+	}
+}
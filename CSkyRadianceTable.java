@@ -0,0 +1,712 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.xutils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+import com.jme.math.FastMath;
+
+/**
+ * Sky colors of a <code>CSkyModel</code> baked in a 3D table, read back with
+ * trilinear interpolation instead of evaluating the Perez functions.<br>
+ * The color of a direction only depends on the sun angle from the zenith, the
+ * height of the direction and its angle to the sun. The table is indexed by
+ * the sun zenith angle, split at the night threshold so that no cell mixes
+ * day and night colors, by the height of the direction and by the sine of half
+ * the angle to the sun, which keeps the circumsolar region well sampled.<br>
+ * The table is baked again by {@link #update()} when the shading parameters
+ * of the model change, or by {@link #update(Executor)} on another thread,
+ * the table keeping its previous colors until the bake completes. The
+ * largest error against the model, measured at the cell centers, is
+ * available after each bake. Channels the model leaves undefined are stored
+ * as 0.<br>
+ * A baked table can be saved to a binary file and loaded back in place of a
+ * bake. Tables loaded from the same file share their colors until one of
+ * them is baked again.<br>
+ * Lookups do not modify the table and can be called from several threads.
+ */
+public class CSkyRadianceTable {
+	public static final int DEFAULT_SUN_SAMPLES = 32;
+	public static final int DEFAULT_HEIGHT_SAMPLES = 32;
+	public static final int DEFAULT_ANGLE_SAMPLES = 64;
+	/** Sun zenith angle above which the sky is shaded as night */
+	private static final float NIGHT_THETA = 0.6f * FastMath.PI;
+	/** "JSKY" in the little endian files */
+	private static final int FILE_MAGIC = 0x594B534A;
+	private static final int FILE_VERSION = 1;
+	private static final int HEADER_BYTES = 64;
+	/** Offset of the checksum, which covers the rest of the file */
+	private static final int CHECKSUM_OFFSET = 52;
+	/** Colors loaded from files, by path, modification time, size and checksum */
+	private static final Map<String, LoadedNodes> loaded = new HashMap<String, LoadedNodes>();
+	/** Loaded colors no longer used by any table */
+	private static final ReferenceQueue<float[]> unused = new ReferenceQueue<float[]>();
+
+	private CSkyModel model;
+	private int dayCount;
+	private int nightCount;
+	private int heightCount;
+	private int angleCount;
+	/** RGBA nodes, the angle to the sun varying fastest */
+	private float[] table;
+	private int revision;
+	private boolean baked;
+	/** Whether the nodes are shared with other tables loaded from a file */
+	private boolean shared;
+	private float maxError;
+	private float meanError;
+	/** Bake running on an executor, or null */
+	private Bake pending;
+
+	public CSkyRadianceTable(CSkyModel model) {
+		this(model, DEFAULT_SUN_SAMPLES, DEFAULT_HEIGHT_SAMPLES,
+				DEFAULT_ANGLE_SAMPLES);
+	}
+
+	/**
+	 * Constructor. The table is baked at the first update.
+	 * 
+	 * @param model -
+	 *            model whose colors are baked
+	 * @param sunSamples -
+	 *            number of sun zenith angles, at least 4
+	 * @param heightSamples -
+	 *            number of direction heights, at least 2
+	 * @param angleSamples -
+	 *            number of angles to the sun, at least 2
+	 */
+	public CSkyRadianceTable(CSkyModel model, int sunSamples,
+			int heightSamples, int angleSamples) {
+		this(model, sunSamples, heightSamples, angleSamples, null);
+	}
+
+	/**
+	 * Constructor of a table around existing colors
+	 * 
+	 * @param nodes -
+	 *            colors of the table, or null to allocate them
+	 */
+	private CSkyRadianceTable(CSkyModel model, int sunSamples,
+			int heightSamples, int angleSamples, float[] nodes) {
+		if (sunSamples < 4 || heightSamples < 2 || angleSamples < 2)
+			throw new IllegalArgumentException("Too few samples");
+		this.model = model;
+		dayCount = getDayCount(sunSamples);
+		nightCount = Math.max(2, sunSamples - dayCount);
+		heightCount = heightSamples;
+		angleCount = angleSamples;
+		table = nodes != null ? nodes : new float[(dayCount + nightCount)
+				* heightCount * angleCount * 4];
+	}
+
+	/**
+	 * @return number of day sun zenith angles among all of them
+	 */
+	private static int getDayCount(int sunSamples) {
+		return Math.max(2, Math.round(sunSamples * 0.6f));
+	}
+
+	/**
+	 * @return number of direction heights
+	 */
+	public int getHeightSamples() {
+		return heightCount;
+	}
+
+	/**
+	 * @return number of angles to the sun
+	 */
+	public int getAngleSamples() {
+		return angleCount;
+	}
+
+	/**
+	 * @return number of sun zenith angles, day and night
+	 */
+	public int getSunSamples() {
+		return dayCount + nightCount;
+	}
+
+	/**
+	 * @return mean error of a color channel at the cell centers, for the last
+	 *         bake
+	 */
+	public float getMeanError() {
+		return meanError;
+	}
+
+	/**
+	 * @return largest error of a color channel at the cell centers, for the
+	 *         last bake
+	 */
+	public float getMaxError() {
+		return maxError;
+	}
+
+	/**
+	 * @return model whose colors are baked
+	 */
+	public CSkyModel getModel() {
+		return model;
+	}
+
+	/**
+	 * Computes the color of a sky direction lit by the sun set on the model
+	 * 
+	 * @param x -
+	 *            x component of the unit direction
+	 * @param y -
+	 *            y component of the unit direction
+	 * @param z -
+	 *            z component of the unit direction
+	 * @param store -
+	 *            array receiving red, green, blue and alpha
+	 */
+	public void shade(float x, float y, float z, float[] store) {
+		shade(model.thetaSun, model.night, y, x * model.sunX + y * model.sunY
+				+ z * model.sunZ, store);
+	}
+
+	/**
+	 * Computes the colors of many sky directions lit by the sun set on the
+	 * model, given as separate arrays of components. The sun dependent part
+	 * of the lookup is done once for all directions.
+	 * 
+	 * @param x -
+	 *            x components of the unit directions
+	 * @param y -
+	 *            y components of the unit directions
+	 * @param z -
+	 *            z components of the unit directions
+	 * @param from -
+	 *            index of the first direction
+	 * @param to -
+	 *            index after the last direction
+	 * @param store -
+	 *            array receiving red, green, blue and alpha of direction
+	 *            <code>i</code> at index <code>4 * i</code>
+	 */
+	public void shade(float[] x, float[] y, float[] z, int from, int to,
+			float[] store) {
+		boolean night = model.night;
+		float s = sunPosition(model.thetaSun, night);
+		int i = Math.min((int) s, (night ? nightCount : dayCount) - 2);
+		float fs = s - i;
+		i += night ? dayCount : 0;
+		float sunX = model.sunX;
+		float sunY = model.sunY;
+		float sunZ = model.sunZ;
+		for (int v = from; v < to; v++)
+			lookup(table, i, fs, y[v], x[v] * sunX + y[v] * sunY + z[v]
+					* sunZ, store, v * 4, false);
+	}
+
+	/**
+	 * Computes the summed colors of several suns at many sky directions. The
+	 * sun dependent part of the lookup is done once per sun and the colors
+	 * are summed in the store array.
+	 * 
+	 * @param suns -
+	 *            models with the shading parameters of the baked one, each
+	 *            with a sun set
+	 * @param sunCount -
+	 *            number of suns to sum, at least 1
+	 * @param x -
+	 *            x components of the unit directions
+	 * @param y -
+	 *            y components of the unit directions
+	 * @param z -
+	 *            z components of the unit directions
+	 * @param from -
+	 *            index of the first direction
+	 * @param to -
+	 *            index after the last direction
+	 * @param store -
+	 *            array receiving red, green, blue and alpha of direction
+	 *            <code>i</code> at index <code>4 * i</code>
+	 */
+	public void shade(CSkyModel[] suns, int sunCount, float[] x, float[] y,
+			float[] z, int from, int to, float[] store) {
+		for (int n = 0; n < sunCount; n++) {
+			CSkyModel sun = suns[n];
+			boolean night = sun.night;
+			float s = sunPosition(sun.thetaSun, night);
+			int i = Math.min((int) s, (night ? nightCount : dayCount) - 2);
+			float fs = s - i;
+			i += night ? dayCount : 0;
+			float sunX = sun.sunX;
+			float sunY = sun.sunY;
+			float sunZ = sun.sunZ;
+			boolean add = n > 0;
+			for (int v = from; v < to; v++)
+				lookup(table, i, fs, y[v], x[v] * sunX + y[v] * sunY + z[v]
+						* sunZ, store, v * 4, add);
+		}
+	}
+
+	/**
+	 * Computes the color of a sky direction, given the sun angle from the
+	 * zenith, the direction height and its angle to the sun
+	 * 
+	 * @param thetaSun -
+	 *            sun angle from the zenith, within (0, PI) interval
+	 * @param night -
+	 *            true to shade the night sky
+	 * @param y -
+	 *            y component of the unit direction
+	 * @param cosGamma -
+	 *            cosine of the angle between the direction and the sun
+	 * @param store -
+	 *            array receiving red, green, blue and alpha
+	 */
+	public void shade(float thetaSun, boolean night, float y, float cosGamma,
+			float[] store) {
+		float s = sunPosition(thetaSun, night);
+		int i = Math.min((int) s, (night ? nightCount : dayCount) - 2);
+		lookup(table, (night ? dayCount : 0) + i, s - i, y, cosGamma, store,
+				0, false);
+	}
+
+	/**
+	 * @return fractional index of a sun zenith angle within the day or night
+	 *         slices
+	 */
+	private float sunPosition(float thetaSun, boolean night) {
+		float s;
+		int count;
+		if (night) {
+			s = (thetaSun - NIGHT_THETA) / (FastMath.PI - NIGHT_THETA)
+					* (nightCount - 1);
+			count = nightCount;
+		} else {
+			s = thetaSun / NIGHT_THETA * (dayCount - 1);
+			count = dayCount;
+		}
+		if (!(s > 0))
+			return 0;
+		else if (s > count - 1)
+			return count - 1;
+		return s;
+	}
+
+	/**
+	 * @param table -
+	 *            colors to read, those of the table or of a bake
+	 * @param add -
+	 *            true to add the color to the stored one
+	 */
+	private void lookup(float[] table, int i, float fs, float y,
+			float cosGamma, float[] store, int offset, boolean add) {
+		// direction height
+		float h = y * (heightCount - 1);
+		if (!(h > 0))
+			h = 0;
+		else if (h > heightCount - 1)
+			h = heightCount - 1;
+		int j = Math.min((int) h, heightCount - 2);
+		float fh = h - j;
+
+		// sine of half the angle to the sun
+		float u = 0.5f * (1.0f - cosGamma);
+		u = u > 0 ? FastMath.sqrt(u) * (angleCount - 1) : 0;
+		if (u > angleCount - 1)
+			u = angleCount - 1;
+		int k = Math.min((int) u, angleCount - 2);
+		float fu = u - k;
+
+		int stride = 4 * angleCount;
+		int n000 = ((i * heightCount + j) * angleCount + k) * 4;
+		int n010 = n000 + stride;
+		int n100 = n000 + stride * heightCount;
+		int n110 = n100 + stride;
+		for (int c = 0; c < 4; c++) {
+			float c00 = table[n000 + c] + fu
+					* (table[n000 + 4 + c] - table[n000 + c]);
+			float c01 = table[n010 + c] + fu
+					* (table[n010 + 4 + c] - table[n010 + c]);
+			float c10 = table[n100 + c] + fu
+					* (table[n100 + 4 + c] - table[n100 + c]);
+			float c11 = table[n110 + c] + fu
+					* (table[n110 + 4 + c] - table[n110 + c]);
+			float c0 = c00 + fh * (c01 - c00);
+			float c1 = c10 + fh * (c11 - c10);
+			float color = c0 + fs * (c1 - c0);
+			store[offset + c] = add ? store[offset + c] + color : color;
+		}
+	}
+
+	/**
+	 * Bakes the table again if the shading parameters of the model changed
+	 * since the last bake
+	 * 
+	 * @return true if the table was baked
+	 */
+	public boolean update() {
+		if (isCurrent())
+			return false;
+		Bake bake = new Bake(shared ? new float[table.length] : table);
+		bake.run();
+		install(bake);
+		return true;
+	}
+
+	/**
+	 * Bakes the table on an executor if the shading parameters of the model
+	 * changed since the last bake. The table keeps its previous colors until
+	 * the bake completes, and the baked colors are only taken by a later
+	 * call, so that they change on the thread reading them.
+	 * 
+	 * @param executor -
+	 *            executor running the bake
+	 * @return true if the table is baked with the current shading parameters
+	 */
+	public boolean update(Executor executor) {
+		if (pending != null && pending.done) {
+			if (pending.revision == model.getRevision())
+				install(pending);
+			pending = null;
+		}
+		if (isCurrent())
+			return true;
+		if (pending == null) {
+			pending = new Bake(new float[table.length]);
+			executor.execute(pending);
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the table is baked with the current shading parameters
+	 *         of the model
+	 */
+	public boolean isCurrent() {
+		return baked && revision == model.getRevision();
+	}
+
+	/**
+	 * Replaces the colors with those of a completed bake
+	 */
+	private void install(Bake bake) {
+		table = bake.nodes;
+		shared = false;
+		revision = bake.revision;
+		maxError = bake.maxError;
+		meanError = bake.meanError;
+		baked = true;
+	}
+
+	/**
+	 * Saves the table to a binary file, baking it first if needed. The file
+	 * is replaced atomically, so that tables already loaded from it are not
+	 * affected.
+	 * 
+	 * @param file -
+	 *            file to write
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public void save(File file) throws IOException {
+		update();
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES + table.length * 4)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(FILE_MAGIC).putInt(FILE_VERSION);
+		buf.putInt(dayCount).putInt(nightCount).putInt(heightCount).putInt(
+				angleCount);
+		buf.putFloat(model.getTurbidity());
+		buf.putInt(model.isLinearExposureControl() ? 1 : 0);
+		// Exposure and gamma as given to the setters, which store inverses
+		buf.putFloat(1.0f / model.getExposure());
+		buf.putFloat(model.getOvercastFactor());
+		buf.putFloat(1.0f / model.getGammaCorrection());
+		buf.putFloat(maxError).putFloat(meanError);
+		buf.position(HEADER_BYTES);
+		buf.asFloatBuffer().put(table);
+		buf.putInt(CHECKSUM_OFFSET, checksum(buf));
+		buf.rewind();
+
+		File dir = file.getAbsoluteFile().getParentFile();
+		File temp = File.createTempFile(file.getName(), ".tmp", dir);
+		RandomAccessFile out = new RandomAccessFile(temp, "rw");
+		try {
+			FileChannel channel = out.getChannel();
+			while (buf.hasRemaining())
+				channel.write(buf);
+		} finally {
+			out.close();
+		}
+		try {
+			Files.move(temp.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Loads a table saved by {@link #save(File)}. The shading parameters the
+	 * table was baked with are set on the model, and the table is baked again
+	 * only if they change afterwards. The colors are read into the heap
+	 * once, and shared by all the tables loaded from the same file.
+	 * 
+	 * @param file -
+	 *            file to read
+	 * @param model -
+	 *            model receiving the shading parameters of the file
+	 * @return the loaded table
+	 * @throws IOException
+	 *             if the file cannot be read, or is not a valid table file
+	 */
+	public static CSkyRadianceTable load(File file, CSkyModel model)
+			throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		ByteBuffer buf;
+		float[] nodes;
+		int days;
+		int nights;
+		int heights;
+		int angles;
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			if (size < HEADER_BYTES)
+				throw new IOException("Not a sky table file: " + file);
+			buf = read(channel, HEADER_BYTES);
+			if (buf.getInt(0) != FILE_MAGIC)
+				throw new IOException("Not a sky table file: " + file);
+			if (buf.getInt(4) != FILE_VERSION)
+				throw new IOException("Unsupported sky table version "
+						+ buf.getInt(4) + ": " + file);
+			days = buf.getInt(8);
+			nights = buf.getInt(12);
+			heights = buf.getInt(16);
+			angles = buf.getInt(20);
+			if (days < 2 || nights < 2 || heights < 2 || angles < 2
+					|| getDayCount(days + nights) != days
+					|| size > Integer.MAX_VALUE
+					|| (long) (days + nights) * heights * angles * 16
+							+ HEADER_BYTES != size)
+				throw new IOException("Corrupted sky table: " + file);
+
+			// A file rewritten within the timestamp resolution still differs
+			// in size or checksum
+			String key = file.getCanonicalPath() + ':' + file.lastModified()
+					+ ':' + size + ':'
+					+ Integer.toHexString(buf.getInt(CHECKSUM_OFFSET));
+			synchronized (loaded) {
+				removeUnused();
+				LoadedNodes ref = loaded.get(key);
+				nodes = ref != null ? ref.get() : null;
+				if (nodes == null) {
+					// Colors are only read when not already loaded
+					ByteBuffer all = read(channel, (int) size);
+					if (checksum(all) != buf.getInt(CHECKSUM_OFFSET))
+						throw new IOException("Sky table checksum mismatch: "
+								+ file);
+					nodes = new float[(all.capacity() - HEADER_BYTES) / 4];
+					all.position(HEADER_BYTES);
+					all.asFloatBuffer().get(nodes);
+					loaded.put(key, new LoadedNodes(key, nodes));
+				}
+			}
+		} finally {
+			in.close();
+		}
+		CSkyRadianceTable table = new CSkyRadianceTable(model, days + nights,
+				heights, angles, nodes);
+
+		model.setTurbidity(buf.getFloat(24));
+		model.setExposure(buf.getInt(28) != 0, buf.getFloat(32));
+		model.setOvercastFactor(buf.getFloat(36));
+		model.setGammaCorrection(buf.getFloat(40));
+		table.maxError = buf.getFloat(44);
+		table.meanError = buf.getFloat(48);
+		table.revision = model.getRevision();
+		table.baked = true;
+		table.shared = true;
+		return table;
+	}
+
+	/**
+	 * Drops the entries of the colors no longer used by any table. Must be
+	 * called holding the lock of the loaded colors.
+	 */
+	private static void removeUnused() {
+		LoadedNodes ref;
+		while ((ref = (LoadedNodes) unused.poll()) != null)
+			// The file may have been loaded again since
+			if (loaded.get(ref.key) == ref)
+				loaded.remove(ref.key);
+	}
+
+	/**
+	 * Colors loaded from a file, which remember their entry
+	 */
+	private static class LoadedNodes extends WeakReference<float[]> {
+		private final String key;
+
+		LoadedNodes(String key, float[] nodes) {
+			super(nodes, unused);
+			this.key = key;
+		}
+	}
+
+	/**
+	 * Reads the start of a file, from its first byte whatever the channel
+	 * position, into a heap buffer in the byte order of the table files
+	 */
+	private static ByteBuffer read(FileChannel channel, int bytes)
+			throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(bytes).order(
+				ByteOrder.LITTLE_ENDIAN);
+		while (buf.hasRemaining())
+			if (channel.read(buf, buf.position()) < 0)
+				throw new EOFException();
+		buf.rewind();
+		return buf;
+	}
+
+	/**
+	 * @return CRC32 of a whole table file, except the field holding it
+	 */
+	private static int checksum(ByteBuffer file) {
+		CRC32 crc = new CRC32();
+		ByteBuffer part = file.duplicate();
+		part.position(0).limit(CHECKSUM_OFFSET);
+		crc.update(part);
+		part = file.duplicate();
+		part.position(CHECKSUM_OFFSET + 4).limit(file.capacity());
+		crc.update(part);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Bake of the table colors with a copy of the shading parameters, which
+	 * can run on any thread
+	 */
+	private class Bake implements Runnable {
+		private final CSkyModel baker;
+		private final int revision;
+		/** Colors being baked, not read by lookups until installed */
+		private final float[] nodes;
+		private float maxError;
+		private float meanError;
+		private volatile boolean done;
+
+		Bake(float[] nodes) {
+			baker = new CSkyModel(model);
+			revision = model.getRevision();
+			this.nodes = nodes;
+		}
+
+		public void run() {
+			bake();
+			measure();
+			done = true;
+		}
+
+		private void bake() {
+			float[] color = new float[4];
+			int n = 0;
+			for (int i = 0; i < dayCount + nightCount; i++) {
+				baker.setSunZenith(sunAngle(i, 0), i >= dayCount);
+				for (int j = 0; j < heightCount; j++) {
+					float y = (float) j / (heightCount - 1);
+					for (int k = 0; k < angleCount; k++) {
+						float u = (float) k / (angleCount - 1);
+						baker.shade(y, 1.0f - 2.0f * u * u, color);
+						for (int c = 0; c < 4; c++, n++)
+							nodes[n] = Float.isNaN(color[c]) ? 0 : color[c];
+					}
+				}
+			}
+		}
+
+		/**
+		 * Compares the baked colors with the model at the center of each
+		 * cell
+		 */
+		private void measure() {
+			float[] exact = new float[4];
+			float[] read = new float[4];
+			double sum = 0;
+			int samples = 0;
+			maxError = 0;
+			for (int i = 0; i < dayCount + nightCount; i++) {
+				if (i == dayCount - 1 || i == dayCount + nightCount - 1)
+					continue;
+				boolean night = i >= dayCount;
+				float thetaSun = sunAngle(i, 0.5f);
+				baker.setSunZenith(thetaSun, night);
+				float s = sunPosition(thetaSun, night);
+				int slice = Math.min((int) s, (night ? nightCount : dayCount)
+						- 2);
+				float fs = s - slice;
+				slice += night ? dayCount : 0;
+				for (int j = 0; j < heightCount - 1; j++) {
+					float y = (j + 0.5f) / (heightCount - 1);
+					for (int k = 0; k < angleCount - 1; k++) {
+						float u = (k + 0.5f) / (angleCount - 1);
+						float cosGamma = 1.0f - 2.0f * u * u;
+						baker.shade(y, cosGamma, exact);
+						lookup(nodes, slice, fs, y, cosGamma, read, 0, false);
+						for (int c = 0; c < 4; c++) {
+							if (Float.isNaN(exact[c]))
+								continue;
+							float error = Math.abs(exact[c] - read[c]);
+							if (error > maxError)
+								maxError = error;
+							sum += error;
+							samples++;
+						}
+					}
+				}
+			}
+			meanError = samples > 0 ? (float) (sum / samples) : 0;
+		}
+	}
+
+	/**
+	 * @return sun zenith angle at a fractional position past a table slice
+	 */
+	private float sunAngle(int i, float offset) {
+		if (i < dayCount)
+			return (i + offset) / (dayCount - 1) * NIGHT_THETA;
+		return NIGHT_THETA + (i - dayCount + offset) / (nightCount - 1)
+				* (FastMath.PI - NIGHT_THETA);
+	}
+}
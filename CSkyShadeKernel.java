@@ -0,0 +1,112 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package jives.xutils;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shades ranges of sky directions, given as separate arrays of components,
+ * with a sky model. The scalar kernel evaluates the model one direction at a
+ * time. On Java 17 and later, with the jdk.incubator.vector module added, a
+ * kernel evaluating several directions per SIMD instruction is loaded
+ * instead; it is a separate class built for Java 17, so that this one still
+ * runs on Java 8.
+ */
+abstract class CSkyShadeKernel {
+	/** Name of the vector kernel, loaded by reflection */
+	private static final String VECTOR_KERNEL = "jives.xutils.CSkyVectorShadeKernel";
+
+	/** Kernel evaluating one direction at a time */
+	static final CSkyShadeKernel SCALAR = new CSkyShadeKernel() {
+		@Override
+		void shade(CSkyModel model, float[] x, float[] y, float[] z,
+				int from, int to, float[] store, boolean add) {
+			float sunX = model.sunX;
+			float sunY = model.sunY;
+			float sunZ = model.sunZ;
+			for (int v = from; v < to; v++)
+				model.shade(y[v], x[v] * sunX + y[v] * sunY + z[v] * sunZ,
+						store, v * 4, add);
+		}
+	};
+
+	/** Vector kernel, or null if it cannot run */
+	private static final CSkyShadeKernel VECTOR = loadVector();
+
+	/**
+	 * @return the vector kernel if it can run, the scalar kernel otherwise
+	 */
+	static CSkyShadeKernel getDefault() {
+		return VECTOR != null ? VECTOR : SCALAR;
+	}
+
+	/**
+	 * @return the vector kernel, or null if it cannot run
+	 */
+	static CSkyShadeKernel getVector() {
+		return VECTOR;
+	}
+
+	private static CSkyShadeKernel loadVector() {
+		try {
+			return (CSkyShadeKernel) Class.forName(VECTOR_KERNEL)
+					.getDeclaredConstructor().newInstance();
+		} catch (Exception e) {
+			// not built, or no vector shape worth it on this machine
+			log(e);
+		} catch (LinkageError e) {
+			// Java 8 to 16, or jdk.incubator.vector not added
+			log(e);
+		}
+		return null;
+	}
+
+	private static void log(Throwable e) {
+		Logger.getLogger(CSkyShadeKernel.class.getName()).log(Level.CONFIG,
+				"Vector sky shading unavailable", e);
+	}
+
+	/**
+	 * Computes the colors of many sky directions lit by the sun of a model
+	 * 
+	 * @param model -
+	 *            sky model with a sun set
+	 * @param x -
+	 *            x components of the unit directions
+	 * @param y -
+	 *            y components of the unit directions
+	 * @param z -
+	 *            z components of the unit directions
+	 * @param from -
+	 *            index of the first direction
+	 * @param to -
+	 *            index after the last direction
+	 * @param store -
+	 *            array receiving red, green, blue and alpha of direction
+	 *            <code>i</code> at index <code>4 * i</code>
+	 * @param add -
+	 *            true to add the colors to the stored ones
+	 */
+	abstract void shade(CSkyModel model, float[] x, float[] y, float[] z,
+			int from, int to, float[] store, boolean add);
+}
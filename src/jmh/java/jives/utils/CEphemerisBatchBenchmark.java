@@ -0,0 +1,114 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.utils;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Computes the sun positions of a day sampled every few seconds, in a batch
+ * on pools of several sizes, or one by one by moving an observer as before
+ * the batch API. Times are per timestamp; multiplied by the pool size they
+ * give the cost per core, and the throughput per core is its inverse.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CEphemerisBatchBenchmark {
+	private static final int TIMES = 32768;
+	/** 2008-07-02 12:00 UTC */
+	private static final long START = 1215000000000L;
+
+	/** Pool the batches are split on */
+	@State(Scope.Thread)
+	public static class Pool {
+		/** Pool parallelism, 0 for the number of cores */
+		@Param( { "1", "2", "4", "0" })
+		public int parallelism;
+
+		private ForkJoinPool pool;
+
+		@Setup
+		public void setup() {
+			pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime
+					.getRuntime().availableProcessors());
+		}
+
+		@TearDown
+		public void tearDown() {
+			pool.shutdown();
+		}
+	}
+
+	private CSunObserver sun;
+	private long[] times = new long[TIMES];
+	private float[] x = new float[TIMES];
+	private float[] y = new float[TIMES];
+	private float[] z = new float[TIMES];
+	private double[] latitude = new double[TIMES];
+	private double[] longitude = new double[TIMES];
+
+	@Setup
+	public void setup() {
+		sun = new CSunObserver(START, 0, 0, 0);
+		for (int i = 0; i < TIMES; i++)
+			times[i] = START + i * (CAstroMath.MILLIS_PER_DAY / TIMES);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(TIMES)
+	public float[] batch(Pool pool) {
+		CEphemerisBatch.compute(sun, sun.getDistanceScale(), times, 45, 12,
+				x, y, z, latitude, longitude, pool.pool);
+		return x;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(TIMES)
+	public float[] observerLoop() {
+		sun.setSiteLatitude(45);
+		sun.setSiteLongitude(12);
+		for (int i = 0; i < TIMES; i++) {
+			sun.setCurrentTime(times[i]);
+			x[i] = sun.getPosition().x;
+			latitude[i] = sun.getLatitude();
+			longitude[i] = sun.getLongitude();
+		}
+		return x;
+	}
+}
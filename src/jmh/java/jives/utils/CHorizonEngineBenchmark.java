@@ -0,0 +1,111 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.utils;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Computes the sun position seen from sites spread over the globe, all at
+ * once with the horizon engine, or one by one by moving an observer from site
+ * to site. Times are per instant for all the sites; divided by the site count
+ * they give the cost per site. Every call moves to the next second, so
+ * neither path can reuse the previous instant.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CHorizonEngineBenchmark {
+	/** 2008-07-02 12:00 UTC */
+	private static final long START = 1215000000000L;
+
+	/** Number of observed sites */
+	@Param( { "1", "16", "256", "4096" })
+	public int sites;
+
+	private CSunObserver sun;
+	private CHorizonEngine engine;
+	private float[] siteLat;
+	private float[] siteLon;
+	private float[] x;
+	private float[] y;
+	private float[] z;
+	private double[] latitude;
+	private double[] longitude;
+	private long time;
+
+	@Setup
+	public void setup() {
+		sun = new CSunObserver(START, 0, 0, 0);
+		siteLat = new float[sites];
+		siteLon = new float[sites];
+		x = new float[sites];
+		y = new float[sites];
+		z = new float[sites];
+		latitude = new double[sites];
+		longitude = new double[sites];
+		// Golden angle spiral, evenly spread from pole to pole
+		for (int i = 0; i < sites; i++) {
+			siteLat[i] = (float) Math.asin(1 - (2 * i + 1) / (double) sites);
+			siteLon[i] = (float) ((i * 2.399963229728653)
+					% (Math.PI * 2) - Math.PI);
+		}
+		engine = new CHorizonEngine();
+		engine.setSites(siteLat, siteLon, sites);
+		time = START;
+	}
+
+	@Benchmark
+	public float[] engine() {
+		time += 1000;
+		engine.compute(sun, sun.getDistanceScale(), time, x, y, z, latitude,
+				longitude);
+		return x;
+	}
+
+	@Benchmark
+	public float[] observerLoop() {
+		time += 1000;
+		for (int i = 0; i < sites; i++) {
+			sun.setSiteLatitude(siteLat[i]);
+			sun.setSiteLongitude(siteLon[i]);
+			sun.setCurrentTime(time);
+			x[i] = sun.getPosition().x;
+			latitude[i] = sun.getLatitude();
+			longitude[i] = sun.getLongitude();
+		}
+		return x;
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.utils;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jme.math.Vector3f;
+
+/**
+ * Moves the sun and moon observers one simulated minute per call, evaluating
+ * their series or their ephemeris caches.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CObserverBenchmark {
+	/** 2008-07-02 12:00 UTC */
+	private static final long START = 1215000000000L;
+	private static final long STEP = 60000L;
+	/** Times wrap after a year */
+	private static final long END = START + 365 * CAstroMath.MILLIS_PER_DAY;
+
+	private CSunObserver sun;
+	private CMoonObserver moon;
+	private CSunObserver cachedSun;
+	private CMoonObserver cachedMoon;
+	private long time;
+
+	@Setup
+	public void setup() {
+		sun = new CSunObserver(START, 0, 0, 0);
+		moon = new CMoonObserver(START, 0, 0, 0);
+		cachedSun = new CSunObserver(START, 0, 0, 0);
+		cachedSun.setEphemerisCache(new CEphemerisCache(cachedSun));
+		cachedMoon = new CMoonObserver(START, 0, 0, 0);
+		cachedMoon.setEphemerisCache(new CEphemerisCache(cachedMoon));
+		time = START;
+	}
+
+	private long next() {
+		time += STEP;
+		if (time > END)
+			time = START;
+		return time;
+	}
+
+	@Benchmark
+	public Vector3f sun() {
+		sun.setCurrentTime(next());
+		return sun.getPosition();
+	}
+
+	@Benchmark
+	public Vector3f moon() {
+		moon.setCurrentTime(next());
+		return moon.getPosition();
+	}
+
+	@Benchmark
+	public Vector3f cachedSun() {
+		cachedSun.setCurrentTime(next());
+		return cachedSun.getPosition();
+	}
+
+	@Benchmark
+	public Vector3f cachedMoon() {
+		cachedMoon.setCurrentTime(next());
+		return cachedMoon.getPosition();
+	}
+}
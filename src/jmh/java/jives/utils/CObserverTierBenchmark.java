@@ -0,0 +1,94 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.utils;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jme.math.Vector3f;
+
+/**
+ * Moves an observer of each tier by a fixed simulated step per call, to
+ * measure their relative costs. The interpolated tiers fit a table per
+ * window, so their cost depends on the number of updates per window.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CObserverTierBenchmark {
+	/** 2008-07-02 12:00 UTC */
+	private static final long START = 1215000000000L;
+	/** Times wrap after a year */
+	private static final long END = START + 365 * CAstroMath.MILLIS_PER_DAY;
+
+	@Param( { "sun", "interpolatedSun", "preciseSun", "moon",
+			"interpolatedMoon" })
+	public String tier;
+
+	/** Simulated milliseconds per update */
+	@Param( { "1000", "60000" })
+	public long step;
+
+	private CCelestialObserver observer;
+	private long time;
+
+	@Setup
+	public void setup() {
+		if (tier.equals("sun"))
+			observer = new CSunObserver(START, 0, 0, 0);
+		else if (tier.equals("interpolatedSun"))
+			observer = new CInterpolatedObserver(new CSunObserver(START, 0,
+					0, 0));
+		else if (tier.equals("preciseSun"))
+			observer = new CPreciseSunObserver(START, 0, 0, 0);
+		else if (tier.equals("moon"))
+			observer = new CMoonObserver(START, 0, 0, 0);
+		else if (tier.equals("interpolatedMoon"))
+			observer = new CInterpolatedObserver(new CMoonObserver(START, 0,
+					0, 0));
+		else
+			throw new IllegalArgumentException("Unknown tier " + tier);
+		time = START;
+	}
+
+	@Benchmark
+	public Vector3f update() {
+		time += step;
+		if (time > END)
+			time = START;
+		observer.setCurrentTime(time);
+		return observer.getPosition();
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.xutils;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jme.math.Vector3f;
+import com.jme.scene.Node;
+
+/**
+ * Sets the cloudness of the atmosphere, alternating between two values so
+ * that every call changes the clouds colors.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class CCloudnessBenchmark {
+	private CSkyDome skydome;
+	private CAtmosphere atmosphere;
+	private File texture;
+	private boolean thick;
+
+	@Setup
+	public void setup() throws IOException {
+		CHeadlessDisplay.init();
+		texture = File.createTempFile("clouds", ".png");
+		ImageIO.write(new BufferedImage(4, 4, BufferedImage.TYPE_INT_ARGB),
+				"png", texture);
+		skydome = new CSkyDome("Sky", new Vector3f());
+		atmosphere = new CAtmosphere(skydome, new Node("Earth"), texture
+				.getAbsolutePath());
+	}
+
+	@TearDown
+	public void tearDown() {
+		skydome.cleanup();
+		texture.delete();
+	}
+
+	@Benchmark
+	public CAtmosphere setCloudness() {
+		thick = !thick;
+		atmosphere.setCloudness(thick ? 0.7f : 0.3f);
+		return atmosphere;
+	}
+}
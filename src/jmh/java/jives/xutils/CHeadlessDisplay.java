@@ -0,0 +1,43 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.xutils;
+
+import com.jme.system.DisplaySystem;
+
+/**
+ * Selects the jME dummy display system, so that render states can be created
+ * without a window, a GPU or a display.
+ */
+final class CHeadlessDisplay {
+	/** Key of the jME dummy display system */
+	static final String DUMMY = "dummy";
+
+	private CHeadlessDisplay() {
+	}
+
+	/**
+	 * Must be called before creating the sky classes, which keep the display
+	 * system current when they are created
+	 */
+	static void init() {
+		DisplaySystem.getDisplaySystem(DUMMY);
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.xutils;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jme.light.PointLight;
+import com.jme.math.Vector3f;
+import com.jme.scene.Node;
+import com.jme.scene.batch.TriangleBatch;
+import com.jme.scene.shape.Sphere;
+import com.jme.scene.state.LightState;
+import com.jme.system.DisplaySystem;
+
+/**
+ * Generates the shadow volumes of a grid of synthetic sphere occluders, lit
+ * by a single sun light.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CShadowVolumesBenchmark {
+	/** Shadow pass whose occluder batches are set directly */
+	static class Pass extends LongShadowedRenderPass {
+		private static final long serialVersionUID = 1L;
+
+		void addOccluderBatch(TriangleBatch batch) {
+			occluderMeshes.add(batch);
+		}
+
+		void generate() {
+			generateVolumes();
+		}
+	}
+
+	@Param( { "16", "128" })
+	public int occluders;
+
+	private Pass pass;
+
+	@Setup
+	public void setup() {
+		CHeadlessDisplay.init();
+		LightState lightState = DisplaySystem.getDisplaySystem().getRenderer()
+				.createLightState();
+		PointLight light = new PointLight();
+		light.setLocation(new Vector3f(1000, 5000, 2000));
+		light.setShadowCaster(true);
+		light.setEnabled(true);
+		lightState.attach(light);
+
+		Node scene = new Node("Occluders");
+		scene.setRenderState(lightState);
+		Sphere[] spheres = new Sphere[occluders];
+		for (int i = 0; i < occluders; i++) {
+			spheres[i] = new Sphere("Occluder" + i, new Vector3f(i % 16 * 10,
+					0, i / 16 * 10), 8, 8, 3);
+			scene.attachChild(spheres[i]);
+		}
+		scene.updateGeometricState(0, true);
+		scene.updateRenderState();
+
+		pass = new Pass();
+		for (int i = 0; i < occluders; i++)
+			for (int j = 0; j < spheres[i].getBatchCount(); j++)
+				pass.addOccluderBatch(spheres[i].getBatch(j));
+	}
+
+	@Benchmark
+	public Pass generateVolumes() {
+		pass.generate();
+		return pass;
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.xutils;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jme.math.Vector3f;
+import com.jme.renderer.ColorRGBA;
+import com.jme.scene.batch.TriangleBatch;
+import com.jme.scene.shape.Dome;
+
+/**
+ * Recolors every vertex of a dome, as the sky dome does when the sky changed
+ * and no recolor budget is set, for several tessellations, sun counts, with
+ * and without the radiance table.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CSkyRecolorBenchmark {
+	/** Dome planes and radial samples */
+	@Param( { "12x20", "32x64", "64x128" })
+	public String tessellation;
+
+	@Param( { "1", "2" })
+	public int sunCount;
+
+	@Param( { "false", "true" })
+	public boolean table;
+
+	private CSkyModel[] suns;
+	private CSkyRadianceTable radianceTable;
+	private ColorRGBA base = new ColorRGBA(0, 0, 0, 0);
+	private float[][] x;
+	private float[][] y;
+	private float[][] z;
+	private FloatBuffer[] colors;
+	private float[] store = new float[0];
+
+	@Setup
+	public void setup() {
+		String[] size = tessellation.split("x");
+		Dome dome = new Dome("Dome", new Vector3f(), Integer
+				.parseInt(size[0]), Integer.parseInt(size[1]), 1, true);
+		int batchCount = dome.getBatchCount();
+		x = new float[batchCount][];
+		y = new float[batchCount][];
+		z = new float[batchCount][];
+		colors = new FloatBuffer[batchCount];
+		for (int i = 0; i < batchCount; i++) {
+			TriangleBatch batch = dome.getBatch(i);
+			FloatBuffer normals = batch.getNormalBuffer();
+			int count = batch.getVertexCount();
+			x[i] = new float[count];
+			y[i] = new float[count];
+			z[i] = new float[count];
+			for (int j = 0; j < count; j++) {
+				x[i][j] = normals.get(j * 3);
+				y[i][j] = normals.get(j * 3 + 1);
+				z[i][j] = normals.get(j * 3 + 2);
+			}
+			colors[i] = batch.getColorBuffer();
+			if (store.length < count * 4)
+				store = new float[count * 4];
+		}
+
+		suns = new CSkyModel[sunCount];
+		for (int i = 0; i < sunCount; i++) {
+			suns[i] = CSkyShadeBenchmark.createModel();
+			suns[i].setSun(0.6f - 0.3f * i, 1.0f - 3.0f * i);
+		}
+		if (table) {
+			radianceTable = new CSkyRadianceTable(suns[0]);
+			radianceTable.update();
+		}
+	}
+
+	@Benchmark
+	public FloatBuffer[] recolor() {
+		for (int i = 0; i < colors.length; i++)
+			CSkyColorSolver.compute(suns, sunCount, base, radianceTable,
+					x[i], y[i], z[i], colors[i], null, 0, x[i].length, store,
+					ForkJoinPool.commonPool());
+		return colors;
+	}
+}
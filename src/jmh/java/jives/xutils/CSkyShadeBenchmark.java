@@ -0,0 +1,120 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.xutils;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Shades random sky directions with the sky model, through the color chain
+ * from the Perez distributions to the gamma corrected RGB color. Times are
+ * per direction. The batch is shaded by the vector kernel when it can run,
+ * and by the scalar kernel for comparison.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CSkyShadeBenchmark {
+	private static final int DIRECTIONS = 4096;
+
+	private CSkyModel model;
+	private CSkyRadianceTable table;
+	private float[] x = new float[DIRECTIONS];
+	private float[] y = new float[DIRECTIONS];
+	private float[] z = new float[DIRECTIONS];
+	private float[] store = new float[DIRECTIONS * 4];
+
+	@Setup
+	public void setup() {
+		model = createModel();
+		model.setSun(0.6f, 1.0f);
+		table = new CSkyRadianceTable(model);
+		table.update();
+		// Directions of the upper hemisphere
+		Random random = new Random(1);
+		for (int i = 0; i < DIRECTIONS; i++) {
+			float cosTheta = random.nextFloat();
+			float sinTheta = (float) Math.sqrt(1 - cosTheta * cosTheta);
+			float phi = random.nextFloat() * 2 * (float) Math.PI;
+			x[i] = sinTheta * (float) Math.cos(phi);
+			y[i] = cosTheta;
+			z[i] = sinTheta * (float) Math.sin(phi);
+		}
+	}
+
+	/**
+	 * @return a model with the shading parameters of a new dome
+	 */
+	static CSkyModel createModel() {
+		CSkyModel model = new CSkyModel();
+		model.setTurbidity(2.95f);
+		model.setExposure(false, 21.0f);
+		model.setOvercastFactor(0.45f);
+		model.setGammaCorrection(1.09f);
+		return model;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(DIRECTIONS)
+	public float[] shadeDirection() {
+		float[] color = store;
+		for (int i = 0; i < DIRECTIONS; i++)
+			model.shade(x[i], y[i], z[i], color);
+		return color;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(DIRECTIONS)
+	public float[] shadeBatch() {
+		model.shade(x, y, z, 0, DIRECTIONS, store);
+		return store;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(DIRECTIONS)
+	public float[] shadeBatchScalar() {
+		CSkyShadeKernel.SCALAR.shade(model, x, y, z, 0, DIRECTIONS, store,
+				false);
+		return store;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(DIRECTIONS)
+	public float[] shadeTable() {
+		table.shade(x, y, z, 0, DIRECTIONS, store);
+		return store;
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.xutils;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the fused tone mapping of the sky model with the RGB to HSV to RGB
+ * round trip and pow gamma it replaced, alone and within the shading of a
+ * direction. Times are per direction.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CSkyToneMapBenchmark {
+	private static final int DIRECTIONS = 4096;
+
+	private CSkyModel fused;
+	private CSkyModel hsv;
+	private float[] x = new float[DIRECTIONS];
+	private float[] y = new float[DIRECTIONS];
+	private float[] z = new float[DIRECTIONS];
+	/** Linear colors of the directions, before tone mapping */
+	private float[] rgb = new float[DIRECTIONS * 3];
+	private float[] store = new float[DIRECTIONS * 4];
+
+	@Setup
+	public void setup() {
+		fused = CSkyShadeBenchmark.createModel();
+		hsv = new CHsvSkyModel();
+		hsv.set(fused);
+		fused.setSun(0.6f, 1.0f);
+		hsv.setSun(0.6f, 1.0f);
+		Random random = new Random(1);
+		for (int i = 0; i < DIRECTIONS; i++) {
+			float cosTheta = random.nextFloat();
+			float sinTheta = (float) Math.sqrt(1 - cosTheta * cosTheta);
+			float phi = random.nextFloat() * 2 * (float) Math.PI;
+			x[i] = sinTheta * (float) Math.cos(phi);
+			y[i] = cosTheta;
+			z[i] = sinTheta * (float) Math.sin(phi);
+			// Sky like colors: blue dominant, up to a few units
+			rgb[i * 3] = random.nextFloat() * 2;
+			rgb[i * 3 + 1] = random.nextFloat() * 2.5f;
+			rgb[i * 3 + 2] = random.nextFloat() * 3;
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(DIRECTIONS)
+	public float[] fusedShade() {
+		for (int i = 0; i < DIRECTIONS; i++)
+			fused.shade(x[i], y[i], z[i], store);
+		return store;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(DIRECTIONS)
+	public float[] hsvShade() {
+		for (int i = 0; i < DIRECTIONS; i++)
+			hsv.shade(x[i], y[i], z[i], store);
+		return store;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(DIRECTIONS)
+	public float[] fusedToneMap() {
+		for (int i = 0; i < DIRECTIONS; i++)
+			fused.toneMap(rgb[i * 3], rgb[i * 3 + 1], rgb[i * 3 + 2], store,
+					i * 4, false);
+		return store;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(DIRECTIONS)
+	public float[] hsvToneMap() {
+		for (int i = 0; i < DIRECTIONS; i++)
+			hsv.toneMap(rgb[i * 3], rgb[i * 3 + 1], rgb[i * 3 + 2], store,
+					i * 4, false);
+		return store;
+	}
+}
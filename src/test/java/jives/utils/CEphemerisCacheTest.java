@@ -0,0 +1,95 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package jives.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that the ephemeris cache finds its segments and evicts the least
+ * recently used one, against a reference cache, with windows on both sides of
+ * the epoch.
+ */
+public class CEphemerisCacheTest {
+	private static final long WINDOW = 3600000L;
+	private static final int ORDER = 4;
+	private static final int MAX_SEGMENTS = 5;
+	/** Source evaluations of a fit */
+	private static final int FIT_SAMPLES = 2 * ORDER + 1;
+
+	/** Linear coordinates, fitted exactly, counting its evaluations */
+	private static class Source implements CEphemerisSource {
+		int calls;
+
+		public void getEclipticCoords(double T, double[] store) {
+			calls++;
+			store[LAMBDA] = T;
+			store[BETA] = -T;
+			store[DISTANCE] = 1;
+		}
+	}
+
+	@Test
+	public void testLeastRecentlyUsedIsEvicted() {
+		Source source = new Source();
+		CEphemerisCache cache = new CEphemerisCache(source, WINDOW, ORDER,
+				MAX_SEGMENTS);
+		Map<Long, Long> reference = new LinkedHashMap<Long, Long>(16, 0.75f,
+				true);
+		Random random = new Random(7);
+		double[] coords = new double[3];
+		double[] expected = new double[3];
+		int fits = 0;
+		for (int q = 0; q < 20000; q++) {
+			// Repeats favour the last window, like frames of a slow clock
+			long window = random.nextInt(4) == 0 ? random.nextInt(12) - 6
+					: reference.isEmpty() ? 0 : last(reference);
+			long time = window * WINDOW + random.nextInt((int) WINDOW);
+			if (reference.get(window) == null) {
+				fits++;
+				reference.put(window, window);
+				if (reference.size() > MAX_SEGMENTS)
+					reference.remove(reference.keySet().iterator().next());
+			}
+			cache.getEclipticCoords(time, coords);
+			source.getEclipticCoords(CAstroMath.centuries(CAstroMath
+					.julianDate(time)), expected);
+			source.calls--;
+			assertEquals(expected[0], coords[0], 1e-12);
+			assertEquals(expected[1], coords[1], 1e-12);
+			assertEquals(fits * FIT_SAMPLES, source.calls);
+			assertEquals(reference.size(), cache.getSegmentCount());
+		}
+	}
+
+	private static long last(Map<Long, Long> reference) {
+		long last = 0;
+		for (long window : reference.keySet())
+			last = window;
+		return last;
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package jives.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.jme.math.Vector3f;
+
+/**
+ * Checks that the horizon engine gives every site the position an observer
+ * set to that site computes, for the sun and the moon at a few instants, and
+ * that observers take the latitude they are given, which they used to store
+ * as their longitude.
+ */
+public class CHorizonEngineTest {
+	/** 2008-07-02 12:00 UTC */
+	private static final long START = 1215000000000L;
+	/** Poles, equator, both hemispheres and both sides of Greenwich */
+	private static final float[] LAT = { 0, 0.8f, -0.6f, 1.5707964f,
+			-1.5707964f, 0.2f, -1.1f, 0.7854f };
+	private static final float[] LON = { 0, 0.2f, -2.5f, 0, 3.1f, -0.7f, 1.9f,
+			3.1415927f };
+	private static final long[] TIMES = { START, START + 6 * 3600000L,
+			START + 200 * CAstroMath.MILLIS_PER_DAY,
+			START - 3650 * CAstroMath.MILLIS_PER_DAY };
+	/** Positions of the engine are rotated in doubles, rounded once */
+	private static final float TOLERANCE = 1e-5f;
+
+	private float[] x = new float[LAT.length];
+	private float[] y = new float[LAT.length];
+	private float[] z = new float[LAT.length];
+	private double[] latitude = new double[LAT.length];
+	private double[] longitude = new double[LAT.length];
+
+	private void assertSameAsObservers(CAbstractObserver observer) {
+		CHorizonEngine engine = new CHorizonEngine();
+		engine.setSites(LAT, LON, LAT.length);
+		assertEquals(LAT.length, engine.getSiteCount());
+		float scale = observer.getDistanceScale();
+		for (int t = 0; t < TIMES.length; t++) {
+			engine.compute(observer, scale, TIMES[t], x, y, z, latitude,
+					longitude);
+			for (int i = 0; i < LAT.length; i++) {
+				observer.setSiteLatitude(LAT[i]);
+				observer.setSiteLongitude(LON[i]);
+				observer.setCurrentTime(TIMES[t]);
+				Vector3f p = observer.getPosition();
+				String site = "site " + i + ", time " + t;
+				float length = p.length();
+				assertEquals(site, p.x, x[i], length * TOLERANCE);
+				assertEquals(site, p.y, y[i], length * TOLERANCE);
+				assertEquals(site, p.z, z[i], length * TOLERANCE);
+				assertEquals(site, observer.getLatitude(), latitude[i],
+						TOLERANCE);
+				assertEquals(site, observer.getLongitude(), longitude[i],
+						TOLERANCE);
+			}
+		}
+	}
+
+	@Test
+	public void testSunMatchesObservers() {
+		assertSameAsObservers(new CSunObserver(START, 0, 0, 0));
+	}
+
+	@Test
+	public void testMoonMatchesObservers() {
+		assertSameAsObservers(new CMoonObserver(START, 0, 0, 0));
+	}
+
+	@Test
+	public void testSiteLatitudeIsKept() {
+		CSunObserver sun = new CSunObserver(START, 0, 0, 0);
+		// Longitude first: a latitude stored as longitude would override it
+		sun.setSiteLongitude(0.3f);
+		sun.setSiteLatitude(0.9f);
+		assertEquals(0.9f, sun.getSiteLatitude(), 0);
+		assertEquals(0.3f, sun.getSiteLongitude(), 0);
+		sun.setCurrentTime(START);
+		CHorizonEngine engine = new CHorizonEngine();
+		engine.setSites(new float[] { 0.9f }, new float[] { 0.3f }, 1);
+		engine.compute(sun, sun.getDistanceScale(), START, x, y, z, latitude,
+				longitude);
+		Vector3f p = sun.getPosition();
+		float length = p.length();
+		assertEquals(p.x, x[0], length * TOLERANCE);
+		assertEquals(p.y, y[0], length * TOLERANCE);
+		assertEquals(p.z, z[0], length * TOLERANCE);
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the event solver reports the updates skipping events, so that
+ * the day and night state is read again from the sun position, as when the
+ * clock jumps back from night to day.
+ */
+public class CSkyEventSolverTest {
+	/** 2020-06-21 12:00 UTC */
+	private static final long NOON = 1592740800000L;
+	private static final long HOUR = 3600000L;
+	private static final float SITE_LAT = 0.7f;
+
+	private CSkyEventSolver solver;
+	private List<Integer> events = new ArrayList<Integer>();
+	private long dusk;
+
+	@Before
+	public void setUp() {
+		solver = new CSkyEventSolver(new CSunObserver(NOON, 0, 0, 0),
+				SITE_LAT, 0);
+		solver.addListener(new CSkyEventListener() {
+			public void skyEvent(CSkyEventSolver solver, int event, long time) {
+				events.add(event);
+			}
+		});
+		dusk = solver.getEventTime(NOON, CSkyEventSolver.ASTRONOMICAL_DUSK);
+		assertTrue(dusk > NOON);
+	}
+
+	@Test
+	public void testClockBackAcrossDusk() {
+		// The first update has no previous state
+		assertTrue(solver.update(dusk - HOUR));
+		assertFalse(solver.update(dusk + HOUR));
+		assertEquals(CSkyEventSolver.ASTRONOMICAL_DUSK, (int) events
+				.get(events.size() - 1));
+		events.clear();
+
+		// Back to the day: no event, but the state must be read again
+		assertTrue(solver.update(dusk - HOUR));
+		assertTrue(events.isEmpty());
+		assertTrue(solver.getAltitude(dusk - HOUR) > -Math.PI / 10);
+
+		// Dusk falls again
+		assertFalse(solver.update(dusk + HOUR));
+		assertEquals(CSkyEventSolver.ASTRONOMICAL_DUSK, (int) events
+				.get(events.size() - 1));
+	}
+
+	@Test
+	public void testFarJumpAndSiteChangeResync() {
+		solver.update(NOON);
+		assertFalse(solver.update(NOON + HOUR));
+		assertTrue(solver.update(NOON + 5 * 24 * HOUR));
+		assertFalse(solver.setSite(SITE_LAT, 0));
+		assertTrue(solver.setSite(-SITE_LAT, 0));
+		assertFalse(solver.update(NOON + 5 * 24 * HOUR + HOUR));
+	}
+}
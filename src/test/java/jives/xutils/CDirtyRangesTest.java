@@ -0,0 +1,126 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.xutils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.FloatBuffer;
+
+import org.junit.Test;
+
+import com.jme.renderer.ColorRGBA;
+
+/**
+ * Checks the dirty tracking of the final color write: vertices outside the
+ * written range, and vertices whose color does not change, are neither
+ * written nor flagged.
+ */
+public class CDirtyRangesTest {
+	private static final int VERTICES = 64;
+	/** Color of the vertices no write may touch */
+	private static final float SENTINEL = -7;
+
+	private ColorRGBA base = new ColorRGBA(0.1f, 0.2f, 0.3f, 1);
+	private float[] store = new float[VERTICES * 4];
+	private FloatBuffer colors = FloatBuffer.allocate(VERTICES * 4);
+	private CDirtyRanges dirty = new CDirtyRanges(VERTICES);
+
+	private void fill() {
+		for (int c = 0; c < store.length; c++)
+			store[c] = c * 0.001f;
+		for (int c = 0; c < VERTICES * 4; c++)
+			colors.put(c, SENTINEL);
+	}
+
+	private void assertUntouched(int v) {
+		assertFalse("vertex " + v + " flagged", dirty.isDirty(v));
+		for (int c = 0; c < 4; c++)
+			assertEquals("vertex " + v + " written", SENTINEL, colors
+					.get(v * 4 + c), 0);
+	}
+
+	private void assertWritten(int v) {
+		assertTrue("vertex " + v + " not flagged", dirty.isDirty(v));
+		for (int c = 0; c < 4; c++)
+			assertEquals(store[v * 4 + c] + (c == 0 ? base.r : c == 1 ? base.g
+					: c == 2 ? base.b : base.a), colors.get(v * 4 + c), 0);
+	}
+
+	@Test
+	public void testWriteLeavesOtherRangesAlone() {
+		fill();
+		CSkyColorSolver.write(base, store, colors, dirty, 16, 40);
+		for (int v = 0; v < VERTICES; v++) {
+			if (v >= 16 && v < 40)
+				assertWritten(v);
+			else
+				assertUntouched(v);
+		}
+		assertEquals(24, dirty.getDirtyCount());
+		assertArrayEquals(new int[] { 16, 40 }, dirty.getRanges(0));
+	}
+
+	@Test
+	public void testWriteSkipsUnchangedColors() {
+		fill();
+		CSkyColorSolver.write(base, store, colors, dirty, 0, VERTICES);
+		dirty.clear();
+		for (int v = 10; v < 14; v++)
+			store[v * 4 + 1] += 0.25f;
+		store[50 * 4 + 3] += 0.25f;
+
+		CSkyColorSolver.write(base, store, colors, dirty, 0, VERTICES);
+		for (int v = 0; v < VERTICES; v++) {
+			if (v >= 10 && v < 14 || v == 50)
+				assertWritten(v);
+			else
+				assertFalse("vertex " + v + " flagged", dirty.isDirty(v));
+		}
+		assertArrayEquals(new int[] { 10, 14, 50, 51 }, dirty.getRanges(0));
+		assertArrayEquals(new int[] { 10, 14, 50, 51 }, dirty.getRanges(35));
+		assertArrayEquals(new int[] { 10, 51 }, dirty.getRanges(36));
+	}
+
+	@Test
+	public void testUndefinedColorsAreUnchanged() {
+		fill();
+		store[5 * 4] = Float.NaN;
+		CSkyColorSolver.write(base, store, colors, dirty, 0, VERTICES);
+		dirty.clear();
+		CSkyColorSolver.write(base, store, colors, dirty, 0, VERTICES);
+		assertEquals(0, dirty.getDirtyCount());
+	}
+
+	@Test
+	public void testMarkChanged() {
+		FloatBuffer after = FloatBuffer.allocate(VERTICES * 4);
+		fill();
+		after.put(colors.duplicate());
+		after.put(7 * 4 + 2, 0.5f);
+		colors.put(30 * 4, Float.NaN);
+		after.put(30 * 4, Float.NaN);
+		dirty.markChanged(colors, after);
+		assertArrayEquals(new int[] { 7, 8 }, dirty.getRanges(0));
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.xutils;
+
+import com.jme.math.FastMath;
+
+/**
+ * Sky model applying exposure through the RGB to HSV to RGB round trip and
+ * gamma through pow, as the sky dome did before the fused tone mapping. It is
+ * the reference of the tone mapping test and benchmark.
+ */
+class CHsvSkyModel extends CSkyModel {
+	@Override
+	void toneMap(float r, float g, float b, float[] store, int offset,
+			boolean add) {
+		float exposure = getExposure();
+		float gammaCorrection = getGammaCorrection();
+		float a = 1.0f;
+
+		// RGB to HSV
+		float minColor = Math.min(Math.min(r, g), b);
+		float maxColor = Math.max(Math.max(r, g), b);
+		float delta = maxColor - minColor;
+		float hue;
+		float saturation;
+		float value = maxColor;
+		if (!(FastMath.abs(maxColor) < CSkyDome.EPSILON)) {
+			saturation = delta / maxColor;
+			if (FastMath.abs(r - maxColor) < CSkyDome.EPSILON)
+				hue = (g - b) / delta; // between yellow & magenta
+			else if (FastMath.abs(g - maxColor) < CSkyDome.EPSILON)
+				hue = 2.0f + (b - r) / delta; // between cyan & yellow
+			else
+				hue = 4.0f + (r - g) / delta; // between magenta & cyan
+			hue *= 60.0f; // degrees
+			if (hue < 0.0f)
+				hue += 360.0f; // positive
+		} else { // r = g = b = 0
+			saturation = 0.0f;
+			hue = -1; // undefined
+		}
+
+		if (isLinearExposureControl()) { // linear scale
+			value *= exposure;
+		} else { // exp scale
+			value = 1.0f - FastMath.exp(-exposure * value);
+		}
+
+		// HSV to RGB
+		if (FastMath.abs(saturation) < CSkyDome.EPSILON) // achromatic (grey)
+			a = value;
+		hue /= 60.0f; // sector 0 to 5
+		int sector = (int) FastMath.floor(hue);
+		float f = hue - sector; // factorial part of hue
+		float p = value * (1.0f - saturation);
+		float q = value * (1.0f - saturation * f);
+		float t = value * (1.0f - saturation * (1.0f - f));
+		switch (sector) {
+		case 0:
+			r = value;
+			g = t;
+			b = p;
+			break;
+		case 1:
+			r = q;
+			g = value;
+			b = p;
+			break;
+		case 2:
+			r = p;
+			g = value;
+			b = t;
+			break;
+		case 3:
+			r = p;
+			g = q;
+			b = value;
+			break;
+		case 4:
+			r = t;
+			g = p;
+			b = value;
+			break;
+		default: // case 5:
+			r = value;
+			g = p;
+			b = q;
+			break;
+		}
+
+		// gamma control
+		r = FastMath.pow(r, gammaCorrection);
+		g = FastMath.pow(g, gammaCorrection);
+		b = FastMath.pow(b, gammaCorrection);
+
+		// clamp rgb between 0.0 - 1.0
+		r = r < 0 ? 0 : (r > 1 ? 1 : r);
+		g = g < 0 ? 0 : (g > 1 ? 1 : g);
+		b = b < 0 ? 0 : (b > 1 ? 1 : b);
+		if (add) {
+			store[offset] += r;
+			store[offset + 1] += g;
+			store[offset + 2] += b;
+			store[offset + 3] += a;
+		} else {
+			store[offset] = r;
+			store[offset + 1] = g;
+			store[offset + 2] = b;
+			store[offset + 3] = a;
+		}
+	}
+}
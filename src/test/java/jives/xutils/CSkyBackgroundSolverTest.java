@@ -0,0 +1,136 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.xutils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.jme.renderer.ColorRGBA;
+
+/**
+ * Checks that the background solver survives and reports a failing job, and
+ * flags the vertices changed since the last frame taken, including those
+ * changed by frames replaced before being taken.
+ */
+public class CSkyBackgroundSolverTest {
+	private static final long TIMEOUT = 10000;
+
+	/** Directions up, to the horizon and halfway */
+	private static final float[][] X = { { 0, 1, 0.6f } };
+	private static final float[][] Y = { { 1, 0, 0.8f } };
+	private static final float[][] Z = { { 0, 0, 0 } };
+	private static final float[][] SOLID_ANGLES = { { 1, 1, 1 } };
+
+	private CSkyBackgroundSolver solver = new CSkyBackgroundSolver();
+	private CSkyModel model = new CSkyModel();
+	/** Jobs submitted, none replacing another before it started */
+	private long submitted;
+
+	private CSkyBackgroundSolver.Job job(float sunLatitude, float[][] y) {
+		return new CSkyBackgroundSolver.Job(model, null,
+				new float[] { sunLatitude }, new float[] { 0 },
+				new ColorRGBA(), false, X, y, Z, SOLID_ANGLES);
+	}
+
+	/**
+	 * @return the next frame, waiting for it
+	 */
+	private CSkyBackgroundSolver.Frame take() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (System.currentTimeMillis() < deadline) {
+			CSkyBackgroundSolver.Frame frame = solver.poll();
+			if (frame != null)
+				return frame;
+			Thread.sleep(1);
+		}
+		throw new AssertionError("no frame");
+	}
+
+	private void submit(CSkyBackgroundSolver.Job job) {
+		submitted++;
+		solver.submit(job);
+	}
+
+	/**
+	 * Submits a job and waits until the solver is done with it, its frame
+	 * being ready or the job dropped
+	 */
+	private void solve(CSkyBackgroundSolver.Job job)
+			throws InterruptedException {
+		submit(job);
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (solver.getDoneJobCount() < submitted) {
+			if (System.currentTimeMillis() > deadline)
+				throw new AssertionError("job not done");
+			Thread.sleep(1);
+		}
+	}
+
+	@After
+	public void shutdown() {
+		solver.shutdown();
+	}
+
+	@Test
+	public void testFailedJobIsDropped() throws InterruptedException {
+		solver.start();
+		// Fewer normal components than vertices
+		solve(job(0.3f, new float[][] { { 1 } }));
+		assertTrue(solver.isAlive());
+		assertNull(solver.poll());
+		assertEquals(1, solver.getFailedJobCount());
+		assertTrue(solver.getLastError() instanceof IndexOutOfBoundsException);
+
+		submit(job(0.3f, Y));
+		CSkyBackgroundSolver.Frame frame = take();
+		assertEquals(1, frame.getSequence());
+		// Nothing to compare the first frame to
+		assertEquals(0, frame.getChangedSince());
+		assertNull(frame.getChangedRanges(0));
+	}
+
+	@Test
+	public void testChangesOfReplacedFramesAreKept()
+			throws InterruptedException {
+		solver.start();
+		submit(job(0.3f, Y));
+		take();
+		submit(job(0.3f, Y));
+		CSkyBackgroundSolver.Frame same = take();
+		assertEquals(1, same.getChangedSince());
+		assertEquals(0, same.getChangedRanges(0).length);
+
+		// The second frame replaces the first, unchanged since the second
+		solve(job(0.5f, Y));
+		solve(job(0.5f, Y));
+		CSkyBackgroundSolver.Frame frame = take();
+		assertEquals(4, frame.getSequence());
+		assertEquals(2, frame.getChangedSince());
+		assertArrayEquals(new int[] { 0, 3 }, frame.getChangedRanges(0));
+		assertNotNull(frame.getColors(0));
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.xutils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Test;
+
+/**
+ * Checks the bake of the radiance table on an executor: the table keeps its
+ * colors until a later update takes those of a completed bake, which must be
+ * the colors of a synchronous bake, and bakes made obsolete by a change of
+ * the shading parameters are dropped. Also checks that tables loaded from a
+ * file share its colors only while the file is unchanged.
+ */
+public class CSkyRadianceTableTest {
+	/** Executor running its tasks when asked to */
+	private static class QueuedExecutor implements Executor {
+		private List<Runnable> tasks = new ArrayList<Runnable>();
+
+		public void execute(Runnable task) {
+			tasks.add(task);
+		}
+
+		void runAll() {
+			for (int i = 0; i < tasks.size(); i++)
+				tasks.get(i).run();
+			tasks.clear();
+		}
+	}
+
+	private CSkyModel createModel() {
+		CSkyModel model = new CSkyModel();
+		model.setTurbidity(2.95f);
+		model.setExposure(false, 21);
+		model.setOvercastFactor(0.45f);
+		model.setGammaCorrection(1.09f);
+		model.setSun(0.3f, 1.2f);
+		return model;
+	}
+
+	/**
+	 * @return colors of the table at a fan of directions
+	 */
+	private float[] shade(CSkyRadianceTable table) {
+		float[] colors = new float[64 * 4];
+		float[] color = new float[4];
+		for (int i = 0; i < 64; i++) {
+			float y = i / 63.0f;
+			float angle = i * 0.7f;
+			float r = (float) Math.sqrt(1 - y * y);
+			float x = (float) Math.cos(angle) * r;
+			float z = (float) Math.sin(angle) * r;
+			table.shade(x, y, z, color);
+			System.arraycopy(color, 0, colors, i * 4, 4);
+		}
+		return colors;
+	}
+
+	@Test
+	public void testBackgroundBakeMatchesSynchronous() {
+		CSkyModel model = createModel();
+		CSkyRadianceTable expected = new CSkyRadianceTable(model);
+		assertTrue(expected.update());
+		CSkyRadianceTable table = new CSkyRadianceTable(model);
+		QueuedExecutor executor = new QueuedExecutor();
+
+		assertFalse(table.update(executor));
+		assertEquals(1, executor.tasks.size());
+		// A bake in progress is not started again
+		assertFalse(table.update(executor));
+		assertEquals(1, executor.tasks.size());
+		executor.runAll();
+		// The colors are only taken by the next update
+		assertFalse(table.isCurrent());
+		assertTrue(table.update(executor));
+		assertTrue(table.isCurrent());
+		assertEquals(0, executor.tasks.size());
+
+		assertArrayEquals(shade(expected), shade(table), 0);
+		assertEquals(expected.getMaxError(), table.getMaxError(), 0);
+		assertEquals(expected.getMeanError(), table.getMeanError(), 0);
+	}
+
+	@Test
+	public void testObsoleteBakeIsDropped() {
+		CSkyModel model = createModel();
+		CSkyRadianceTable table = new CSkyRadianceTable(model);
+		QueuedExecutor executor = new QueuedExecutor();
+		assertFalse(table.update(executor));
+		model.setTurbidity(4);
+		executor.runAll();
+
+		// The bake of the previous turbidity is dropped for a new one
+		assertFalse(table.update(executor));
+		assertFalse(table.isCurrent());
+		assertEquals(1, executor.tasks.size());
+		executor.runAll();
+		assertTrue(table.update(executor));
+
+		CSkyRadianceTable expected = new CSkyRadianceTable(model);
+		expected.update();
+		assertArrayEquals(shade(expected), shade(table), 0);
+	}
+
+	@Test
+	public void testRewrittenFileIsLoadedAgain() throws IOException {
+		File file = File.createTempFile("sky", ".tab");
+		try {
+			CSkyModel model = createModel();
+			CSkyRadianceTable first = new CSkyRadianceTable(model, 8, 4, 8);
+			first.save(file);
+			long modified = file.lastModified();
+			CSkyRadianceTable loaded = CSkyRadianceTable.load(file,
+					createModel());
+			assertArrayEquals(shade(first), shade(loaded), 0);
+
+			// Same path and modification time, other colors
+			model.setTurbidity(4);
+			CSkyRadianceTable second = new CSkyRadianceTable(model, 8, 4, 8);
+			second.save(file);
+			assertTrue(file.setLastModified(modified));
+			CSkyRadianceTable reloaded = CSkyRadianceTable.load(file,
+					createModel());
+			assertArrayEquals(shade(second), shade(reloaded), 0);
+			// Tables already loaded keep their colors
+			assertArrayEquals(shade(first), shade(loaded), 0);
+		} finally {
+			file.delete();
+		}
+	}
+}
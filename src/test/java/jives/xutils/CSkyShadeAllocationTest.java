@@ -0,0 +1,200 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.xutils;
+
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jme.renderer.ColorRGBA;
+
+/**
+ * Checks that shading sky directions and recoloring a dome allocate nothing,
+ * whatever the number of vertices. Domes are kept below the split threshold
+ * of the solver, whose fork-join tasks are the only objects it creates.
+ * Environment bakes only allocate their tasks and scratch arrays, a few per
+ * core of the pool.
+ */
+public class CSkyShadeAllocationTest {
+	private static final int VERTICES = 2048;
+	private static final int RUNS = 200;
+	/**
+	 * Most measures of the runs, the lowest being kept; the vector kernel
+	 * only stops allocating once C2 has compiled its loops
+	 */
+	private static final int ROUNDS = 50;
+
+	private CSkyModel[] suns = new CSkyModel[2];
+	private CSkyRadianceTable table;
+	private ColorRGBA base = new ColorRGBA(0.1f, 0.1f, 0.1f, 0);
+	private float[] x = new float[VERTICES];
+	private float[] y = new float[VERTICES];
+	private float[] z = new float[VERTICES];
+	private float[] store = new float[VERTICES * 4];
+	private FloatBuffer colors = ByteBuffer.allocateDirect(VERTICES * 16)
+			.order(ByteOrder.nativeOrder()).asFloatBuffer();
+	private CDirtyRanges dirty = new CDirtyRanges(VERTICES);
+
+	@Before
+	public void setUp() {
+		for (int i = 0; i < suns.length; i++) {
+			suns[i] = new CSkyModel();
+			suns[i].setSun(0.6f - 0.3f * i, 1.0f - 3.0f * i);
+		}
+		table = new CSkyRadianceTable(suns[0]);
+		table.update();
+		Random random = new Random(1);
+		for (int i = 0; i < VERTICES; i++) {
+			float cosTheta = random.nextFloat();
+			float sinTheta = (float) Math.sqrt(1 - cosTheta * cosTheta);
+			float phi = random.nextFloat() * 2 * (float) Math.PI;
+			x[i] = sinTheta * (float) Math.cos(phi);
+			y[i] = cosTheta;
+			z[i] = sinTheta * (float) Math.sin(phi);
+		}
+	}
+
+	/**
+	 * @return bytes allocated by the current thread so far
+	 */
+	private static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean()).getThreadAllocatedBytes(Thread
+				.currentThread().getId());
+	}
+
+	/**
+	 * @return bytes allocated by all the threads so far
+	 */
+	private static long allThreadsAllocatedBytes() {
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long sum = 0;
+		long[] allocated = bean.getThreadAllocatedBytes(bean
+				.getAllThreadIds());
+		for (int i = 0; i < allocated.length; i++)
+			sum += Math.max(0, allocated[i]);
+		return sum;
+	}
+
+	/**
+	 * Runs a task many times after a warm up, and fails if it allocated
+	 * more than the reading of the allocation counter itself. The best of a
+	 * few rounds is kept, so that a one-off allocation of the JVM on the
+	 * test thread, or of a task not compiled yet, is not taken for one of
+	 * the task.
+	 */
+	private static void assertNoAllocation(String name, Runnable task) {
+		for (int i = 0; i < RUNS; i++)
+			task.run();
+		long overhead = allocatedBytes();
+		overhead = allocatedBytes() - overhead;
+		long allocated = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS && allocated >= RUNS; round++) {
+			long start = allocatedBytes();
+			for (int i = 0; i < RUNS; i++)
+				task.run();
+			allocated = Math.min(allocated, allocatedBytes() - start
+					- overhead);
+		}
+		assertTrue(name + " allocated " + allocated + " bytes in " + RUNS
+				+ " runs", allocated < RUNS);
+	}
+
+	@Test
+	public void testShade() {
+		assertNoAllocation("shade per direction", new Runnable() {
+			public void run() {
+				for (int i = 0; i < VERTICES; i++)
+					suns[0].shade(x[i], y[i], z[i], store);
+			}
+		});
+		assertNoAllocation("shade batch", new Runnable() {
+			public void run() {
+				suns[0].shade(x, y, z, 0, VERTICES, store);
+			}
+		});
+		assertNoAllocation("table batch", new Runnable() {
+			public void run() {
+				table.shade(x, y, z, 0, VERTICES, store);
+			}
+		});
+	}
+
+	@Test
+	public void testRecolor() {
+		for (int sunCount = 1; sunCount <= suns.length; sunCount++) {
+			for (int t = 0; t < 2; t++) {
+				final int count = sunCount;
+				final CSkyRadianceTable radianceTable = t == 0 ? null : table;
+				String name = count + " suns, table " + (t == 1);
+				assertNoAllocation("recolor, " + name, new Runnable() {
+					public void run() {
+						CSkyColorSolver.compute(suns, count, base,
+								radianceTable, x, y, z, colors, null, 0,
+								VERTICES, store, ForkJoinPool.commonPool());
+					}
+				});
+				assertNoAllocation("tracked recolor, " + name,
+						new Runnable() {
+							public void run() {
+								CSkyColorSolver.compute(suns, count, base,
+										radianceTable, x, y, z, colors, dirty,
+										0, VERTICES, store, ForkJoinPool
+												.commonPool());
+							}
+						});
+			}
+		}
+	}
+
+	@Test
+	public void testEnvironmentBake() {
+		CSkyEnvironmentBaker baker = new CSkyEnvironmentBaker(
+				CSkyEnvironmentBaker.CUBE_MAP, 128, CSkyEnvironmentBaker.RGBE);
+		baker.setSky(new CSkyModel(), new float[] { 0.4f, -0.2f },
+				new float[] { 1.0f, 2.0f }, base);
+		baker.setStarVisibility(0.5f);
+		baker.setTolerance(0);
+		ForkJoinPool pool = new ForkJoinPool(2);
+		try {
+			for (int i = 0; i < 5; i++)
+				baker.bake(pool);
+			int bakes = 10;
+			long start = allThreadsAllocatedBytes();
+			for (int i = 0; i < bakes; i++)
+				baker.bake(pool);
+			long allocated = (allThreadsAllocatedBytes() - start) / bakes;
+			assertTrue("environment bake allocated " + allocated + " bytes",
+					allocated < baker.getTilesBaked() * 64);
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
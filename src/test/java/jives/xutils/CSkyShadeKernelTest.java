@@ -0,0 +1,108 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package jives.xutils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeNotNull;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the vector sky shading kernel against the scalar one. Channels must
+ * match within {@link #TOLERANCE} of their magnitude, at least 1. Skipped
+ * when the vector kernel cannot run, before Java 17 or without the
+ * jdk.incubator.vector module.
+ */
+public class CSkyShadeKernelTest {
+	/** Both kernels agree within 1e-5; an 8-bit step would hide real drift */
+	private static final float TOLERANCE = 1e-4f;
+	private static final int SUNS = 100;
+	/** Not a multiple of any vector length, so that the tail is shaded too */
+	private static final int DIRECTIONS = 1021;
+	/** Index of the first direction shaded */
+	private static final int FROM = 3;
+
+	/** Linear exposure, exposure, gamma, overcast */
+	private static final Object[][] SETTINGS = {
+			{ false, 21.0f, 1.09f, 0.45f }, { false, 5.0f, 2.2f, 0.0f },
+			{ true, 2.0f, 1.0f, 1.0f }, { true, 40.0f, 0.6f, 0.2f } };
+
+	private Random random = new Random(1);
+	private float[] x = new float[DIRECTIONS];
+	private float[] y = new float[DIRECTIONS];
+	private float[] z = new float[DIRECTIONS];
+	private float[] vector = new float[DIRECTIONS * 4];
+	private float[] scalar = new float[DIRECTIONS * 4];
+
+	private void set(CSkyModel model, Object[] setting) {
+		model.setTurbidity(2.95f);
+		model.setExposure((Boolean) setting[0], (Float) setting[1]);
+		model.setGammaCorrection((Float) setting[2]);
+		model.setOvercastFactor((Float) setting[3]);
+	}
+
+	private void shade(CSkyModel model, boolean add, String name) {
+		for (int c = 0; c < scalar.length; c++) {
+			scalar[c] = add ? random.nextFloat() : Float.NaN;
+			vector[c] = scalar[c];
+		}
+		CSkyShadeKernel.SCALAR.shade(model, x, y, z, FROM, DIRECTIONS,
+				scalar, add);
+		CSkyShadeKernel.getVector().shade(model, x, y, z, FROM, DIRECTIONS,
+				vector, add);
+		for (int c = 0; c < scalar.length; c++) {
+			if (c < FROM * 4)
+				assertEquals(name + " channel " + c + " written", scalar[c],
+						vector[c], 0);
+			else
+				assertEquals(name + " channel " + c, scalar[c], vector[c],
+						TOLERANCE * Math.max(1, Math.abs(scalar[c])));
+		}
+	}
+
+	@Test
+	public void testVectorMatchesScalar() {
+		assumeNotNull(CSkyShadeKernel.getVector());
+		for (int i = 0; i < DIRECTIONS; i++) {
+			y[i] = 1 - random.nextFloat();
+			float r = (float) Math.sqrt(1 - y[i] * y[i]);
+			float phi = random.nextFloat() * 2 * (float) Math.PI;
+			x[i] = r * (float) Math.cos(phi);
+			z[i] = r * (float) Math.sin(phi);
+		}
+		CSkyModel model = new CSkyModel();
+		for (int s = 0; s < SETTINGS.length; s++) {
+			set(model, SETTINGS[s]);
+			for (int i = 0; i < SUNS; i++) {
+				// Sun latitudes of the day and night sides
+				float lat = (random.nextFloat() * 2 - 1) * (float) Math.PI;
+				float lon = random.nextFloat() * 2 * (float) Math.PI;
+				model.setSun(lat, lon);
+				String name = "setting " + s + ", sun " + lat + " " + lon;
+				shade(model, false, name);
+				shade(model, true, name + ", added");
+			}
+		}
+	}
+}
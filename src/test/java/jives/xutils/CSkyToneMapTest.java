@@ -0,0 +1,126 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jives.xutils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the fused tone mapping of the sky model against the RGB to HSV to
+ * RGB round trip it replaced. Channels must match within {@link #TOLERANCE}
+ * of their magnitude, at least 1, except the channels the round trip left
+ * undefined, from the gamma of a negative channel, which are now 0.
+ */
+public class CSkyToneMapTest {
+	/** Both paths agree to about 3e-5; an 8-bit step would hide real drift */
+	private static final float TOLERANCE = 1e-4f;
+	private static final int SUNS = 200;
+	private static final int DIRECTIONS = 500;
+
+	/** Linear exposure, exposure, gamma */
+	private static final Object[][] SETTINGS = { { false, 21.0f, 1.09f },
+			{ false, 5.0f, 2.2f }, { true, 2.0f, 1.0f },
+			{ true, 40.0f, 0.6f } };
+
+	private Random random = new Random(1);
+	private float[] fused = new float[4];
+	private float[] reference = new float[4];
+	private int undefined;
+
+	private void set(CSkyModel model, Object[] setting) {
+		model.setTurbidity(2.95f);
+		model.setOvercastFactor(0.45f);
+		model.setExposure((Boolean) setting[0], (Float) setting[1]);
+		model.setGammaCorrection((Float) setting[2]);
+	}
+
+	/**
+	 * Compares the colors of both paths, channel by channel
+	 */
+	private void assertColor(String name) {
+		for (int c = 0; c < 4; c++) {
+			assertFalse(name + " undefined", Float.isNaN(fused[c]));
+			if (Float.isNaN(reference[c])) {
+				assertEquals(name + " channel " + c, 0, fused[c], 0);
+				undefined++;
+			} else
+				assertEquals(name + " channel " + c, reference[c], fused[c],
+						TOLERANCE * Math.max(1, Math.abs(reference[c])));
+		}
+	}
+
+	@Test
+	public void testShadeMatchesHsv() {
+		CSkyModel model = new CSkyModel();
+		CSkyModel hsv = new CHsvSkyModel();
+		int channels = 0;
+		for (int s = 0; s < SETTINGS.length; s++) {
+			set(model, SETTINGS[s]);
+			set(hsv, SETTINGS[s]);
+			for (int i = 0; i < SUNS; i++) {
+				// Sun latitudes of the day and night sides
+				float lat = (random.nextFloat() * 2 - 1) * (float) Math.PI;
+				float lon = random.nextFloat() * 2 * (float) Math.PI;
+				model.setSun(lat, lon);
+				hsv.setSun(lat, lon);
+				for (int j = 0; j < DIRECTIONS; j++) {
+					float y = 1 - random.nextFloat();
+					float r = (float) Math.sqrt(1 - y * y);
+					float phi = random.nextFloat() * 2 * (float) Math.PI;
+					float x = r * (float) Math.cos(phi);
+					float z = r * (float) Math.sin(phi);
+					model.shade(x, y, z, fused);
+					hsv.shade(x, y, z, reference);
+					assertColor("setting " + s + ", sun " + lat + " " + lon
+							+ ", direction " + x + " " + y + " " + z);
+					channels += 4;
+				}
+			}
+		}
+		// Night skies have negative blue channels
+		assertTrue("no undefined channel among " + channels, undefined > 0);
+	}
+
+	@Test
+	public void testNegativeChannelsAreZero() {
+		CSkyModel model = new CSkyModel();
+		CSkyModel hsv = new CHsvSkyModel();
+		for (int s = 0; s < SETTINGS.length; s++) {
+			set(model, SETTINGS[s]);
+			set(hsv, SETTINGS[s]);
+			for (int i = 0; i < 10000; i++) {
+				float r = random.nextFloat() * 4 - 1;
+				float g = random.nextFloat() * 4 - 1;
+				float b = random.nextFloat() * 4 - 1;
+				model.toneMap(r, g, b, fused, 0, false);
+				hsv.toneMap(r, g, b, reference, 0, false);
+				assertColor("setting " + s + ", color " + r + " " + g + " "
+						+ b);
+			}
+		}
+		assertTrue(undefined > 0);
+	}
+}
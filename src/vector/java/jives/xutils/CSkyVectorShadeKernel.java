@@ -0,0 +1,273 @@
+/*
+ *  Copyright (c) 2008 Adriano Dalpane
+ *  All rights reserved.
+ *
+ *  This file is part of JIVES.
+ *
+ *  JIVES is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  JIVES is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with JIVES.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package jives.xutils;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Sky shading kernel evaluating the Perez model, the XYZ to RGB conversion,
+ * the exposure and the gamma in SIMD lanes, as many directions at a time as
+ * the preferred vector shape of the machine holds.<br>
+ * Directions are shaded in chunks, in three passes sharing planar red,
+ * green, blue and alpha arrays of the calling thread: C2 keeps the vectors of
+ * a short loop in registers, but gives up inlining in a loop holding the
+ * whole chain and then boxes the vectors on the heap. The colors are then
+ * interleaved into the store. The directions left over after the last whole
+ * vector are shaded by the model itself.<br>
+ * Colors differ from the scalar ones by a few float roundings: the vector
+ * transcendental functions are not those of StrictMath, and the gamma is
+ * computed instead of read from the table of the model. The overcast blend
+ * and the night scaling are applied to every direction, without the
+ * shortcuts of the scalar code, which gives the same colors.<br>
+ * Built for Java 17 and later, and loaded by {@link CSkyShadeKernel} only
+ * when the jdk.incubator.vector module is added.
+ */
+final class CSkyVectorShadeKernel extends CSkyShadeKernel {
+	private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+	private static final int LANES = SPECIES.length();
+	/** Directions per chunk, a multiple of any vector length */
+	private static final int CHUNK = 256;
+
+	/** Red, green, blue and alpha planes of a chunk, per thread */
+	private static final ThreadLocal<float[]> PLANES = new ThreadLocal<float[]>() {
+		@Override
+		protected float[] initialValue() {
+			return new float[CHUNK * 4];
+		}
+	};
+
+	CSkyVectorShadeKernel() {
+		// below four lanes, the scalar kernel is as fast
+		if (LANES < 4)
+			throw new UnsupportedOperationException(SPECIES.toString());
+	}
+
+	@Override
+	void shade(CSkyModel model, float[] x, float[] y, float[] z, int from,
+			int to, float[] store, boolean add) {
+		float[] planes = PLANES.get();
+		for (int start = from; start < to; start += CHUNK) {
+			int count = Math.min(CHUNK, to - start);
+			int vectorCount = SPECIES.loopBound(count);
+			shadeLuminance(model, x, y, z, start, vectorCount, planes);
+			shadeLinear(model, x, y, z, start, vectorCount, planes);
+			toneMap(model, vectorCount, planes);
+			interleave(planes, vectorCount, store, start * 4, add);
+			for (int v = start + vectorCount; v < start + count; v++)
+				model.shade(y[v], x[v] * model.sunX + y[v] * model.sunY
+						+ z[v] * model.sunZ, store, v * 4, add);
+		}
+	}
+
+	/**
+	 * Computes the angles to the sun and the luminances of directions, the
+	 * first part of {@link CSkyModel#shade(float, float, float[], int,
+	 * boolean)}
+	 * 
+	 * @param count -
+	 *            number of directions, a multiple of the vector length
+	 * @param planes -
+	 *            array receiving the luminances in the green plane, and the
+	 *            angles to the sun in the alpha plane
+	 */
+	private static void shadeLuminance(CSkyModel model, float[] x, float[] y,
+			float[] z, int from, int count, float[] planes) {
+		float sunX = model.sunX;
+		float sunY = model.sunY;
+		float sunZ = model.sunZ;
+		float overcast = model.overcast;
+		for (int i = 0; i < count; i += LANES) {
+			FloatVector vy = FloatVector.fromArray(SPECIES, y, from + i);
+			FloatVector cosGamma = cosGamma(x, vy, z, from + i, sunX, sunY,
+					sunZ);
+			FloatVector gamma = cosGamma.lanewise(VectorOperators.ACOS);
+			gamma.intoArray(planes, CHUNK * 3 + i);
+
+			// luminance(Y) for clear & overcast sky
+			FloatVector yClear = perez(model.perezLuminance, vy.broadcast(1.0f)
+					.div(vy), gamma, cosGamma.mul(cosGamma),
+					model.zenithLuminance);
+			FloatVector yOver = vy.mul(2.0f).add(1.0f).div(3.0f);
+			yClear.mul(1.0f - overcast).add(yOver.mul(overcast)).intoArray(
+					planes, CHUNK + i);
+		}
+	}
+
+	/**
+	 * Computes the linear RGB colors of directions from their luminances and
+	 * angles to the sun, the second part of {@link CSkyModel#shade(float,
+	 * float, float[], int, boolean)}
+	 * 
+	 * @param count -
+	 *            number of directions, a multiple of the vector length
+	 * @param planes -
+	 *            array holding the luminances and the angles to the sun, and
+	 *            receiving the red, green and blue planes
+	 */
+	private static void shadeLinear(CSkyModel model, float[] x, float[] y,
+			float[] z, int from, int count, float[] planes) {
+		float sunX = model.sunX;
+		float sunY = model.sunY;
+		float sunZ = model.sunZ;
+		// It's night time: scale, exact when by 1
+		float nightX = model.night ? 0.01f : 1.0f;
+		float nightY = model.night ? 0.01f : 1.0f;
+		float nightZ = model.night ? -0.045f : 1.0f;
+		for (int i = 0; i < count; i += LANES) {
+			FloatVector vy = FloatVector.fromArray(SPECIES, y, from + i);
+			FloatVector cosGamma = cosGamma(x, vy, z, from + i, sunX, sunY,
+					sunZ);
+			FloatVector gamma = FloatVector.fromArray(SPECIES, planes, CHUNK
+					* 3 + i);
+			FloatVector lumY = FloatVector.fromArray(SPECIES, planes, CHUNK
+					+ i);
+
+			FloatVector cosTheta = vy.broadcast(1.0f).div(vy);
+			FloatVector cosGamma2 = cosGamma.mul(cosGamma);
+
+			// Compute x,y values
+			FloatVector xValue = perez(model.perezX, cosTheta, gamma,
+					cosGamma2, model.zenithX);
+			FloatVector yValue = perez(model.perezY, cosTheta, gamma,
+					cosGamma2, model.zenithY);
+
+			FloatVector lumX = xValue.div(yValue).mul(lumY).mul(nightX);
+			FloatVector lumZ = xValue.broadcast(1.0f).sub(xValue).sub(yValue)
+					.div(yValue).mul(lumY).mul(nightZ);
+			lumY = lumY.mul(nightY);
+
+			// XYZ to RGB
+			lumX.mul(3.240479f).sub(lumY.mul(1.537150f)).sub(
+					lumZ.mul(0.498535f)).intoArray(planes, i);
+			lumX.mul(-0.969256f).add(lumY.mul(1.875992f)).add(
+					lumZ.mul(0.041556f)).intoArray(planes, CHUNK + i);
+			lumX.mul(0.055648f).sub(lumY.mul(0.204043f)).add(
+					lumZ.mul(1.057311f)).intoArray(planes, CHUNK * 2 + i);
+		}
+	}
+
+	/**
+	 * @return cosines of the angles between directions and the sun, clamped
+	 *         as FastMath.acos does
+	 */
+	private static FloatVector cosGamma(float[] x, FloatVector vy, float[] z,
+			int offset, float sunX, float sunY, float sunZ) {
+		return FloatVector.fromArray(SPECIES, x, offset).mul(sunX).add(
+				vy.mul(sunY)).add(
+				FloatVector.fromArray(SPECIES, z, offset).mul(sunZ)).max(
+				-1.0f).min(1.0f);
+	}
+
+	private static FloatVector perez(float[] perezCoeffs, FloatVector cosTheta,
+			FloatVector gamma, FloatVector cosGamma2, float zenithValue) {
+		FloatVector theta = cosTheta.mul(perezCoeffs[1]).lanewise(
+				VectorOperators.EXP).mul(perezCoeffs[0]).add(1.0f);
+		FloatVector sun = gamma.mul(perezCoeffs[3]).lanewise(
+				VectorOperators.EXP).mul(perezCoeffs[2]).add(1.0f).add(
+				cosGamma2.mul(perezCoeffs[4]));
+		return theta.mul(zenithValue).mul(sun);
+	}
+
+	/**
+	 * Applies exposure and gamma to the linear RGB planes in place, as
+	 * {@link CSkyModel#toneMap(float, float, float, float[], int, boolean)},
+	 * and fills the alpha plane
+	 * 
+	 * @param count -
+	 *            number of directions, a multiple of the vector length
+	 */
+	private static void toneMap(CSkyModel model, int count, float[] planes) {
+		VectorMask<Float> linear = SPECIES.maskAll(model.isLinearExpControl);
+		float exposure = model.exposure;
+		float gammaCorrection = model.gammaCorrection;
+		for (int i = 0; i < count; i += LANES) {
+			FloatVector r = FloatVector.fromArray(SPECIES, planes, i);
+			FloatVector g = FloatVector.fromArray(SPECIES, planes, CHUNK + i);
+			FloatVector b = FloatVector.fromArray(SPECIES, planes, CHUNK * 2
+					+ i);
+
+			// Exposure: scale all channels with the largest one
+			FloatVector maxColor = r.max(g).max(b);
+			// exp or linear scale
+			FloatVector value = maxColor.mul(-exposure).lanewise(
+					VectorOperators.EXP).neg().add(1.0f).blend(
+					maxColor.mul(exposure), linear);
+			VectorMask<Float> black = maxColor.abs().compare(
+					VectorOperators.LT, CSkyDome.EPSILON);
+			VectorMask<Float> grey = maxColor.sub(r.min(g).min(b)).div(
+					maxColor).abs().compare(VectorOperators.LT,
+					CSkyDome.EPSILON);
+			FloatVector scale = value.div(maxColor);
+
+			// gamma control, clamping rgb between 0.0 - 1.0, undefined
+			// channels being 0. The power is taken as exp(gamma * log(c)),
+			// which Java 17 vectorizes for every vector size, unlike POW.
+			// Written out for each channel: C2 boxes the vectors of a helper
+			// method here.
+			r = r.mul(scale).blend(value, black);
+			r.broadcast(0.0f).blend(r.min(1.0f).lanewise(VectorOperators.LOG)
+					.mul(gammaCorrection).lanewise(VectorOperators.EXP),
+					r.compare(VectorOperators.GT, 0.0f)).intoArray(planes, i);
+			g = g.mul(scale).blend(value, black);
+			g.broadcast(0.0f).blend(g.min(1.0f).lanewise(VectorOperators.LOG)
+					.mul(gammaCorrection).lanewise(VectorOperators.EXP),
+					g.compare(VectorOperators.GT, 0.0f)).intoArray(planes,
+					CHUNK + i);
+			b = b.mul(scale).blend(value, black);
+			b.broadcast(0.0f).blend(b.min(1.0f).lanewise(VectorOperators.LOG)
+					.mul(gammaCorrection).lanewise(VectorOperators.EXP),
+					b.compare(VectorOperators.GT, 0.0f)).intoArray(planes,
+					CHUNK * 2 + i);
+			value.broadcast(1.0f).blend(value, black.or(grey)).intoArray(
+					planes, CHUNK * 3 + i);
+		}
+	}
+
+	/**
+	 * Stores or adds the planar colors of consecutive directions as red,
+	 * green, blue and alpha of each direction
+	 * 
+	 * @param offset -
+	 *            index of the red channel of the first direction
+	 */
+	private static void interleave(float[] planes, int count, float[] store,
+			int offset, boolean add) {
+		if (add) {
+			for (int i = 0; i < count; i++, offset += 4) {
+				store[offset] += planes[i];
+				store[offset + 1] += planes[CHUNK + i];
+				store[offset + 2] += planes[CHUNK * 2 + i];
+				store[offset + 3] += planes[CHUNK * 3 + i];
+			}
+		} else {
+			for (int i = 0; i < count; i++, offset += 4) {
+				store[offset] = planes[i];
+				store[offset + 1] = planes[CHUNK + i];
+				store[offset + 2] = planes[CHUNK * 2 + i];
+				store[offset + 3] = planes[CHUNK * 3 + i];
+			}
+		}
+	}
+}